@@ -201,6 +201,31 @@ public class ByteUtils {
         return -1;
     }
 
+    // 64-bit hash for sketches, mixing 8 bytes at a time with the
+    // MurmurHash3 finalizer.
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    public static long hash64(final DirectBuffer buffer) {
+        final int size = buffer.capacity();
+        long h = HASH_MULTIPLIER ^ size;
+        int i = 0;
+        for (; i + Long.BYTES <= size; i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ mix64(buffer.getLong(i, ByteOrder.LITTLE_ENDIAN)), 27) * HASH_MULTIPLIER;
+        }
+        long tail = 0;
+        for (int shift = 0; i < size; i++, shift += Byte.SIZE) {
+            tail |= (buffer.getByte(i) & 0xFFL) << shift;
+        }
+        return mix64(h ^ mix64(tail));
+    }
+
     // https://en.wikipedia.org/wiki/SHA-1#SHA-1_pseudocode
 
     private static final int SHA1_BLOCK_BYTES = 512 / Byte.SIZE;
@@ -8,7 +8,7 @@
             [crux.system :as sys]
             [clojure.tools.logging :as log])
   (:import (crux.api Crux ICruxAPI ICruxIngestAPI
-                     ICruxAsyncIngestAPI ICruxDatasource
+                     ICruxAsyncIngestAPI ICruxDatasource IPreparedQuery
                      HistoryOptions HistoryOptions$SortOrder RemoteClientOptions)
            java.lang.AutoCloseable
            (java.util Date)
@@ -111,8 +111,11 @@
 
   `event-opts` should contain `:crux/event-type`, along with any other options the event-type requires.
 
-  We currently only support one public event-type: `:crux/indexed-tx`.
-  Supplying `:with-tx-ops? true` will include the transaction's operations in the event passed to `f`.
+  We currently support two public event-types:
+  - `:crux/indexed-tx`: supplying `:with-tx-ops? true` will include the transaction's operations in the event passed to `f`.
+  - `:crux/query-delta`: supply the `:query` to follow. `f` is passed the query's current results under `:added`,
+    then the tuples each indexed transaction adds to and removes from them, under `:added` and `:removed`.
+    Queries with `:order-by`, `:limit`, `:offset` or `:args` aren't supported.
 
   `(.close ...)` the return value to detach the listener.
 
@@ -244,15 +247,29 @@
   include tx-id and tx-time.
   eid is an object that can be coerced into an entity id.")
 
-  (q [db query]
+  (entities [db eids]
+    "queries the document maps for several entities at once.
+  eids are objects which can be coerced into entity ids.
+  returns a map from each eid with a document to its document map.")
+
+  (entity-txs [db eids]
+    "returns the transaction details for several entities at once.
+  eids are objects which can be coerced into entity ids.
+  returns a map from each eid with a transaction to its details.")
+
+  (q [db query] [db query args]
     "q[uery] a Crux db.
   query param is a datalog query in map, vector or string form.
   This function will return a set of result tuples if you do not specify `:order-by`, `:limit` or `:offset`;
-  otherwise, it will return a vector of result tuples.")
+  otherwise, it will return a vector of result tuples.
+
+  When given args, they're used as the query's `:args`, and query may
+  also be a prepared query returned by `prepare-q`.")
 
-  (open-q ^crux.api.ICursor [db query]
+  (open-q ^crux.api.ICursor [db query] ^crux.api.ICursor [db query args]
     "lazily q[uery] a Crux db.
   query param is a datalog query in map, vector or string form.
+  args are used as in `q`.
 
   This function returns a Cursor of result tuples - once you've consumed
   as much of the sequence as you need to, you'll need to `.close` the sequence.
@@ -265,6 +282,16 @@
 
   Once the sequence is closed, attempting to iterate it is undefined.")
 
+  (prepare-q ^crux.api.IPreparedQuery [db query]
+    "prepares a query for repeated execution, conforming it only once.
+  query param is a datalog query in map, vector or string form.
+  The prepared query can be passed to `q` and `open-q` with new args,
+  for any db of the same node:
+
+  (let [prepared (crux/prepare-q db '{:find [e]
+                                      :where [[e :name name]]})]
+    (crux/q (crux/db node) prepared [{'name \"Ivan\"}]))")
+
   (entity-history
     [db eid sort-order]
     [db eid sort-order opts]
@@ -318,13 +345,27 @@
   (alter-meta! #'entity-history assoc :arglists arglists)
   (alter-meta! #'open-entity-history assoc :arglists arglists))
 
+(defn- ->prepared-query ^crux.api.IPreparedQuery [^ICruxDatasource db query]
+  (if (instance? IPreparedQuery query)
+    query
+    (.prepareQuery db query)))
+
 (extend-protocol PCruxDatasource
   ICruxDatasource
   (entity [this eid] (.entity this eid))
   (entity-tx [this eid] (.entityTx this eid))
+  (entities [this eids] (.entities this eids))
+  (entity-txs [this eids] (.entityTxs this eids))
+
+  (q
+    ([this query] (.query this query))
+    ([this query args] (.query (->prepared-query this query) this args)))
+
+  (open-q
+    ([this query] (.openQuery this query))
+    ([this query args] (.openQuery (->prepared-query this query) this args)))
 
-  (q [this query] (.query this query))
-  (open-q [this query] (.openQuery this query))
+  (prepare-q [this query] (.prepareQuery this query))
 
   (entity-history
     ([this eid sort-order] (entity-history this eid sort-order {}))
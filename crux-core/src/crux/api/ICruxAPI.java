@@ -123,9 +123,11 @@ public interface ICruxAPI extends ICruxIngestAPI, Closeable {
     /**
      * Attaches a listener to Crux's event bus.
      *
-     * We currently only support one public event-type: `:crux/indexed-tx`.
-     * Supplying `:with-tx-ops? true` will include the transaction's operations in the event passed to `f`.
+     * We currently support two public event-types:
+     * `:crux/indexed-tx` - supplying `:with-tx-ops? true` will include the transaction's operations in the event passed to `f`.
      * See/use {@link #TX_INDEXED_EVENT_OPTS TX_INDEXED_EVENT_OPTS}
+     * `:crux/query-delta` - supply the `:query` to follow. The listener is passed the query's current results under `:added`,
+     * then the tuples each indexed transaction adds to and removes from them, under `:added` and `:removed`.
      *
      * This is an experimental API, subject to change.
      *
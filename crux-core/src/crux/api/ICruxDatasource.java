@@ -30,6 +30,26 @@ public interface ICruxDatasource extends Closeable {
      */
     public Map<Keyword,?> entityTx(Object eid);
 
+    /**
+     * Returns the document maps for several entities, resolved with a
+     * single index snapshot and document fetch. Entities without a
+     * document at this db's valid and transaction time are left out.
+     *
+     * @param eids objects that can be coerced into entity ids.
+     * @return     the entity document maps, keyed by the given eids.
+     */
+    public Map<Object, Map<Keyword,Object>> entities(Collection<?> eids);
+
+    /**
+     * Returns the transaction details for several entities, resolved
+     * with a single index snapshot. Entities without a transaction at
+     * this db's valid and transaction time are left out.
+     *
+     * @param eids objects that can be coerced into entity ids.
+     * @return     the entity transaction details, keyed by the given eids.
+     */
+    public Map<Object, Map<Keyword,?>> entityTxs(Collection<?> eids);
+
     /**
      * Queries the db.
      *
@@ -49,6 +69,16 @@ public interface ICruxDatasource extends Closeable {
      */
     public ICursor<List<?>> openQuery(Object query);
 
+    /**
+     * Prepares a query for repeated execution, conforming it once.
+     * The prepared query can be executed against any db of the same
+     * node, with new `:args` each time.
+     *
+     * @param query the query in map, vector or string form.
+     * @return      a prepared query.
+     */
+    public IPreparedQuery prepareQuery(Object query);
+
     /**
      * Eagerly retrieves entity history for the given entity.
      *
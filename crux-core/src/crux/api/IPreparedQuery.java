@@ -0,0 +1,31 @@
+package crux.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query conformed once, to be executed repeatedly against different
+ * db values and arguments.
+ *
+ * @see ICruxDatasource#prepareQuery(Object)
+ */
+public interface IPreparedQuery {
+    /**
+     * Executes the query against the db with the given args.
+     *
+     * @param db   the db to query.
+     * @param args the `:args` of this execution, or null to use the args the query was prepared with.
+     * @return     a set or vector of result tuples, as {@link ICruxDatasource#query(Object)}.
+     */
+    public Collection<List<?>> query(ICruxDatasource db, List<Map<?, ?>> args);
+
+    /**
+     * Executes the query lazily against the db with the given args.
+     *
+     * @param db   the db to query.
+     * @param args the `:args` of this execution, or null to use the args the query was prepared with.
+     * @return     a cursor of result tuples.
+     */
+    public ICursor<List<?>> openQuery(ICruxDatasource db, List<Map<?, ?>> args);
+}
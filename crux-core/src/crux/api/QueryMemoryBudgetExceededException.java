@@ -0,0 +1,14 @@
+package crux.api;
+
+public class QueryMemoryBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public final long requestedBytes;
+    public final long usedBytes;
+
+    public QueryMemoryBudgetExceededException(String message, long requestedBytes, long usedBytes) {
+        super(message);
+        this.requestedBytes = requestedBytes;
+        this.usedBytes = usedBytes;
+    }
+}
@@ -26,13 +26,22 @@ public class QueryState {
     public final QueryStatus status;
     public final Map<Keyword, ?> query;
     public final QueryError error;
+    public final Long peakMemoryUsage;
 
     public QueryState(Object queryId, Date startedAt, Date finishedAt, QueryStatus status, Map<Keyword, ?> query, QueryError error) {
+        this(queryId, startedAt, finishedAt, status, query, error, null);
+    }
+
+    /**
+     * @param peakMemoryUsage the most bytes held by the query's operators, null if not accounted.
+     */
+    public QueryState(Object queryId, Date startedAt, Date finishedAt, QueryStatus status, Map<Keyword, ?> query, QueryError error, Long peakMemoryUsage) {
         this.queryId = queryId;
         this.startedAt = startedAt;
         this.finishedAt = finishedAt;
         this.status = status;
         this.query = query;
         this.error = error;
+        this.peakMemoryUsage = peakMemoryUsage;
     }
 }
@@ -21,7 +21,7 @@
 ;; Indexes
 
 ;; NOTE: Must be updated when existing indexes change structure.
-(def index-version 13)
+(def index-version 14)
 (def ^:const index-version-size Long/BYTES)
 
 (def ^:const index-id-size Byte/BYTES)
@@ -50,6 +50,15 @@
 (def ^:const av-index-id 10)
 (def ^:const ae-index-id 11)
 
+;; pages of the bloom filter over eids with bitemporal history
+(def ^:const eid-bloom-filter-page-index-id 12)
+
+;; optional, eid to the entity tx current at its latest transaction
+(def ^:const entity->current-state-index-id 13)
+
+;; attribute id to the compact id used in the content indexes
+(def ^:const attribute-dictionary-index-id 14)
+
 (def ^:const value-type-id-size Byte/BYTES)
 
 (def ^:const id-size (+ hash/id-hash-size value-type-id-size))
@@ -247,6 +256,14 @@
 (defn value-buffer-type-id ^org.agrona.DirectBuffer [^DirectBuffer buffer]
   (mem/limit-buffer buffer value-type-id-size))
 
+;; Strings starting with a prefix either share the encoded prefix, or
+;; are long enough to be hashed as clobs, so could be any clob.
+(defn string-prefix-value-buffers [^String prefix]
+  (cond-> [(mem/on-heap-buffer (byte-array [clob-value-type-id]))]
+    (<= (count prefix) max-string-index-length)
+    (conj (let [b (->value-buffer prefix)]
+            (mem/limit-buffer b (dec (.capacity b)))))))
+
 (defn- decode-long ^long [^DirectBuffer buffer]
   (bit-xor (.getLong buffer value-type-id-size  ByteOrder/BIG_ENDIAN) Long/MIN_VALUE))
 
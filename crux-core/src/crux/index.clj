@@ -1,8 +1,8 @@
 (ns ^:no-doc crux.index
   (:require [crux.db :as db]
             [crux.memory :as mem])
-  (:import [crux.index IndexStoreIndexState NAryJoinLayeredVirtualIndexState NAryWalkState
-            RelationVirtualIndexState SortedVirtualIndexState UnaryJoinIteratorState UnaryJoinIteratorsThunkFnState UnaryJoinIteratorsThunkState]
+  (:import [crux.index IndexProfile IndexStoreIndexState LayeredIndexWalker NAryConstrainingLayeredVirtualIndexState NAryJoinLayeredVirtualIndexState
+            RelationVirtualIndexState SortedVirtualIndexState UnaryJoinVirtualIndexState]
            clojure.lang.Box
            java.util.function.Function
            [java.util Comparator Iterator NavigableMap TreeMap]
@@ -119,6 +119,41 @@
                                           k
                                           (.val v))))))
 
+;; Values starting with any of the prefixes, which are sorted and don't
+;; overlap, seeking past the values in between.
+
+(defn- seek-prefixes [idx prefixes v]
+  (loop [v v]
+    (when v
+      (when-let [^DirectBuffer prefix (some (fn [^DirectBuffer prefix]
+                                              (when-not (pos? (mem/compare-buffers v prefix (.capacity prefix)))
+                                                prefix))
+                                            prefixes)]
+        (if (mem/buffers=? v prefix (.capacity prefix))
+          v
+          (recur (db/seek-values idx prefix)))))))
+
+(defrecord PrefixesVirtualIndex [idx prefixes]
+  db/Index
+  (seek-values [this k]
+    (seek-prefixes idx prefixes (db/seek-values idx k)))
+
+  (next-values [this]
+    (seek-prefixes idx prefixes (db/next-values idx)))
+
+  db/LayeredIndex
+  (open-level [_]
+    (db/open-level idx))
+
+  (close-level [_]
+    (db/close-level idx))
+
+  (max-depth [_]
+    (db/max-depth idx)))
+
+(defn new-prefixes-virtual-index [idx prefixes]
+  (->PrefixesVirtualIndex idx (vec prefixes)))
+
 (defn wrap-with-range-constraints [idx range-constraints]
   (if range-constraints
     (range-constraints idx)
@@ -141,60 +176,20 @@
   (close-level [_])
   (max-depth [_] 1))
 
-(defn- new-unary-join-iterator-state [idx value]
-  (UnaryJoinIteratorState. idx value))
-
-(defn- long-mod ^long [^long num ^long div]
-  (let [m (rem num div)]
-    (if (or (zero? m) (= (pos? num) (pos? div)))
-      m
-      (+ m div))))
-
-(defrecord UnaryJoinVirtualIndex [indexes ^UnaryJoinIteratorsThunkFnState state]
+(defrecord UnaryJoinVirtualIndex [indexes ^UnaryJoinVirtualIndexState state]
   db/Index
   (seek-values [this k]
-    (set! (.thunk state)
-          (fn []
-            (let [iterators (for [idx indexes]
-                              (new-unary-join-iterator-state idx (db/seek-values idx k)))]
-              (when (every? #(.key ^UnaryJoinIteratorState %) iterators)
-                (UnaryJoinIteratorsThunkState. (->> iterators
-                                                    (sort-by (fn [x] (.key ^UnaryJoinIteratorState x)) mem/buffer-comparator)
-                                                    (to-array))
-                                               0)))))
-    (db/next-values this))
+    (.seekValues state k))
 
   (next-values [this]
-    (when-let [iterators-thunk (.thunk state)]
-      (when-let [iterators-thunk ^UnaryJoinIteratorsThunkState (iterators-thunk)]
-        (let [iterators ^objects (.iterators iterators-thunk)
-              index (.index iterators-thunk)
-              iterator-state ^UnaryJoinIteratorState (aget iterators index)
-              max-index (long-mod (dec index) (alength iterators))
-              max-k (.key ^UnaryJoinIteratorState (aget iterators max-index))
-              match? (mem/buffers=? (.key iterator-state) max-k)
-              idx (.idx iterator-state)]
-          (set! (.thunk state)
-                (fn []
-                  (let [v (if match?
-                            (db/next-values idx)
-                            (db/seek-values idx max-k))]
-                    (when v
-                      (set! (.-key iterator-state) v)
-                      (set! (.index iterators-thunk) (long-mod (inc index) (alength iterators)))
-                      iterators-thunk))))
-          (if match?
-            max-k
-            (recur))))))
+    (.nextValues state))
 
   db/LayeredIndex
   (open-level [this]
-    (doseq [idx indexes]
-      (db/open-level idx)))
+    (.openLevel state))
 
   (close-level [this]
-    (doseq [idx indexes]
-      (db/close-level idx)))
+    (.closeLevel state))
 
   (max-depth [this]
     1))
@@ -202,100 +197,70 @@
 (defn new-unary-join-virtual-index [indexes]
   (if (= 1 (count indexes))
     (first indexes)
-    (->UnaryJoinVirtualIndex indexes (UnaryJoinIteratorsThunkFnState. nil))))
+    (->UnaryJoinVirtualIndex indexes (UnaryJoinVirtualIndexState. (object-array indexes)))))
 
 (defrecord NAryJoinLayeredVirtualIndex [unary-join-indexes ^NAryJoinLayeredVirtualIndexState state]
   db/Index
   (seek-values [this k]
-    (db/seek-values (nth unary-join-indexes (.depth state) nil) k))
+    (.seekValues state k))
 
   (next-values [this]
-    (db/next-values (nth unary-join-indexes (.depth state) nil)))
+    (.nextValues state))
 
   db/LayeredIndex
   (open-level [this]
-    (db/open-level (nth unary-join-indexes (.depth state) nil))
-    (set! (.depth state) (inc (.depth state)))
-    nil)
+    (.openLevel state))
 
   (close-level [this]
-    (db/close-level (nth unary-join-indexes (dec (long (.depth state))) nil))
-    (set! (.depth state) (dec (.depth state)))
-    nil)
+    (.closeLevel state))
 
   (max-depth [this]
-    (count unary-join-indexes)))
+    (.maxDepth state)))
 
 (defn new-n-ary-join-layered-virtual-index [indexes]
-  (->NAryJoinLayeredVirtualIndex indexes (NAryJoinLayeredVirtualIndexState. 0)))
+  (->NAryJoinLayeredVirtualIndex indexes (NAryJoinLayeredVirtualIndexState. (object-array indexes))))
 
-(defn- build-constrained-result [constrain-result-fn result-stack max-k]
-  (let [max-ks (last result-stack)
-        join-keys (conj (or max-ks []) max-k)]
-    (when (constrain-result-fn join-keys)
-      (conj result-stack join-keys))))
-
-(defrecord NAryConstrainingLayeredVirtualIndex [n-ary-index constrain-result-fn ^NAryWalkState state]
+(defrecord NAryConstrainingLayeredVirtualIndex [n-ary-index ^NAryConstrainingLayeredVirtualIndexState state]
   db/Index
   (seek-values [this k]
-    (when-let [v (db/seek-values n-ary-index k)]
-      (if-let [result (build-constrained-result constrain-result-fn (.result-stack state) v)]
-        (do (set! (.last state) result)
-            v)
-        (db/next-values this))))
+    (.seekValues state k))
 
   (next-values [this]
-    (when-let [v (db/next-values n-ary-index)]
-      (if-let [result (build-constrained-result constrain-result-fn (.result-stack state) v)]
-        (do (set! (.last state) result)
-            v)
-        (recur))))
+    (.nextValues state))
 
   db/LayeredIndex
   (open-level [this]
-    (db/open-level n-ary-index)
-    (set! (.result-stack state) (.last state))
-    nil)
+    (.openLevel state))
 
   (close-level [this]
-    (db/close-level n-ary-index)
-    (set! (.result-stack state) (pop (.result-stack state)))
-    nil)
+    (.closeLevel state))
 
   (max-depth [this]
     (db/max-depth n-ary-index)))
 
 (defn new-n-ary-constraining-layered-virtual-index [idx constrain-result-fn]
-  (->NAryConstrainingLayeredVirtualIndex idx constrain-result-fn (NAryWalkState. [] nil)))
+  (->NAryConstrainingLayeredVirtualIndex idx (NAryConstrainingLayeredVirtualIndexState. idx constrain-result-fn (db/max-depth idx))))
 
 (defn layered-idx->seq [idx]
   (when idx
-    (let [max-depth (long (db/max-depth idx))
-          step (fn step [max-ks ^long depth needs-seek?]
-                 (when (Thread/interrupted)
-                   (throw (InterruptedException.)))
-                 (let [close-level (fn []
-                                     (when (pos? depth)
-                                       (lazy-seq
-                                        (db/close-level idx)
-                                        (step (pop max-ks) (dec depth) false))))
-                       open-level (fn [v]
-                                    (db/open-level idx)
-                                    (if-let [max-ks (conj max-ks v)]
-                                      (step max-ks (inc depth) true)
-                                      (do (db/close-level idx)
-                                          (step max-ks depth false))))]
-                   (if (= depth (dec max-depth))
-                     (concat (for [v (idx->seq idx)]
-                               (conj max-ks v))
-                             (close-level))
-                     (if-let [v (if needs-seek?
-                                  (db/seek-values idx nil)
-                                  (db/next-values idx))]
-                       (open-level v)
-                       (close-level)))))]
-      (when (pos? max-depth)
-        (step [] 0 true)))))
+    (let [walker (LayeredIndexWalker. idx (db/max-depth idx))
+          step (fn step []
+                 (lazy-seq
+                  (when-let [join-keys (.next walker)]
+                    (cons join-keys (step)))))]
+      (step))))
+
+(defn layered-idx->batch-seq
+  "Like layered-idx->seq, but returns a lazy seq of JoinKeysBatch, each
+  holding up to batch-size join key tuples as columns, one per depth."
+  [idx batch-size]
+  (when idx
+    (let [walker (LayeredIndexWalker. idx (db/max-depth idx))
+          step (fn step []
+                 (lazy-seq
+                  (when-let [batch (.nextBatch walker (int batch-size))]
+                    (cons batch (step)))))]
+      (step))))
 
 (defrecord SortedVirtualIndex [^NavigableMap m ^SortedVirtualIndexState state]
   db/Index
@@ -357,11 +322,20 @@
     (doto m
       (.put k v))))
 
+(def ^:private ^:const relation-entry-overhead-bytes 64)
+
+;; memoryUsage estimates the bytes held by the tree, counting every
+;; encoded value and its tree entry, ignoring shared prefixes.
 (defn update-relation-virtual-index!
   ([^RelationVirtualIndex relation tuples]
    (update-relation-virtual-index! relation tuples (.encode_value_fn relation) false))
   ([^RelationVirtualIndex relation tuples encode-value-fn single-values?]
-   (let [tree (if single-values?
+   (let [memory-usage (long-array 1)
+         encode-value-fn (fn [v]
+                           (let [^DirectBuffer b (encode-value-fn v)]
+                             (aset memory-usage 0 (+ (aget memory-usage 0) relation-entry-overhead-bytes (.capacity b)))
+                             b))
+         tree (if single-values?
                 (reduce
                  (fn [^TreeMap acc v]
                    (doto acc
@@ -376,11 +350,15 @@
          root-level (new-sorted-virtual-index tree)
          state ^RelationVirtualIndexState (.state relation)]
      (set! (.tree state) tree)
+     (set! (.memoryUsage state) (aget memory-usage 0))
      (set! (.path state) [])
      (set! (.indexes state) [root-level])
      (set! (.key state) nil)
      relation)))
 
+(defn relation-memory-usage ^long [^RelationVirtualIndex relation]
+  (.memoryUsage ^RelationVirtualIndexState (.state relation)))
+
 (defn new-relation-virtual-index [tuples max-depth encode-value-fn]
   (update-relation-virtual-index! (->RelationVirtualIndex max-depth
                                                           (RelationVirtualIndexState. nil nil nil nil)
@@ -397,3 +375,32 @@
 
 (defn new-singleton-virtual-index [v encode-value-fn]
   (->SingletonVirtualIndex (encode-value-fn v)))
+
+;; Profiling
+
+(defrecord ProfilingVirtualIndex [idx ^IndexProfile profile]
+  db/Index
+  (seek-values [this k]
+    (let [start (System/nanoTime)
+          v (db/seek-values idx k)]
+      (.add profile 1 0 (if v 1 0) (- (System/nanoTime) start))
+      v))
+
+  (next-values [this]
+    (let [start (System/nanoTime)
+          v (db/next-values idx)]
+      (.add profile 0 1 (if v 1 0) (- (System/nanoTime) start))
+      v))
+
+  db/LayeredIndex
+  (open-level [_]
+    (db/open-level idx))
+
+  (close-level [_]
+    (db/close-level idx))
+
+  (max-depth [_]
+    (db/max-depth idx)))
+
+(defn new-profiling-virtual-index [idx ^IndexProfile profile]
+  (->ProfilingVirtualIndex idx profile))
@@ -0,0 +1,14 @@
+package crux.index;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+final class DbIndexFns {
+    static final IFn SEEK_VALUES = Clojure.var("crux.db", "seek-values");
+    static final IFn NEXT_VALUES = Clojure.var("crux.db", "next-values");
+    static final IFn OPEN_LEVEL = Clojure.var("crux.db", "open-level");
+    static final IFn CLOSE_LEVEL = Clojure.var("crux.db", "close-level");
+
+    private DbIndexFns() {
+    }
+}
@@ -0,0 +1,33 @@
+package crux.index;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class IndexProfile {
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder nexts = new LongAdder();
+    private final LongAdder values = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    public void add(final long seeks, final long nexts, final long values, final long nanos) {
+        this.seeks.add(seeks);
+        this.nexts.add(nexts);
+        this.values.add(values);
+        this.nanos.add(nanos);
+    }
+
+    public long seeks() {
+        return seeks.sum();
+    }
+
+    public long nexts() {
+        return nexts.sum();
+    }
+
+    public long values() {
+        return values.sum();
+    }
+
+    public long nanos() {
+        return nanos.sum();
+    }
+}
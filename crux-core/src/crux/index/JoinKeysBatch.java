@@ -0,0 +1,11 @@
+package crux.index;
+
+public final class JoinKeysBatch {
+    public final Object[][] columns;
+    public final int size;
+
+    public JoinKeysBatch(final Object[][] columns, final int size) {
+        this.columns = columns;
+        this.size = size;
+    }
+}
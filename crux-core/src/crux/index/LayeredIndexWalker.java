@@ -0,0 +1,65 @@
+package crux.index;
+
+import java.util.Arrays;
+import clojure.lang.LazilyPersistentVector;
+
+public final class LayeredIndexWalker {
+    private final Object idx;
+    private final Object[] joinKeys;
+    private int depth;
+    private boolean needsSeek;
+    private boolean done;
+
+    public LayeredIndexWalker(final Object idx, final int maxDepth) {
+        this.idx = idx;
+        this.joinKeys = new Object[Math.max(maxDepth, 0)];
+        this.needsSeek = true;
+        this.done = maxDepth <= 0;
+    }
+
+    private boolean advance() throws InterruptedException {
+        final int leafDepth = joinKeys.length - 1;
+        while (!done) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final Object v = needsSeek ? DbIndexFns.SEEK_VALUES.invoke(idx, null) : DbIndexFns.NEXT_VALUES.invoke(idx);
+            needsSeek = false;
+            if (v != null) {
+                joinKeys[depth] = v;
+                if (depth == leafDepth) {
+                    return true;
+                }
+                DbIndexFns.OPEN_LEVEL.invoke(idx);
+                depth++;
+                needsSeek = true;
+            } else if (depth > 0) {
+                DbIndexFns.CLOSE_LEVEL.invoke(idx);
+                depth--;
+            } else {
+                done = true;
+            }
+        }
+        return false;
+    }
+
+    public Object next() throws InterruptedException {
+        if (advance()) {
+            return LazilyPersistentVector.createOwning(Arrays.copyOf(joinKeys, joinKeys.length));
+        }
+        return null;
+    }
+
+    public JoinKeysBatch nextBatch(final int batchSize) throws InterruptedException {
+        final int capacity = Math.max(batchSize, 1);
+        final Object[][] columns = new Object[joinKeys.length][capacity];
+        int size = 0;
+        while (size < capacity && advance()) {
+            for (int i = 0; i < joinKeys.length; i++) {
+                columns[i][size] = joinKeys[i];
+            }
+            size++;
+        }
+        return size == 0 ? null : new JoinKeysBatch(columns, size);
+    }
+}
@@ -0,0 +1,72 @@
+package crux.index;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+
+public final class NAryConstrainingLayeredVirtualIndexState {
+    private final Object nAryIndex;
+    private final IFn constrainResultFn;
+    private final JoinKeys joinKeys;
+    private int depth;
+
+    private static final class JoinKeys extends AbstractList<Object> implements RandomAccess {
+        private final Object[] keys;
+        private int size;
+
+        private JoinKeys(final int maxDepth) {
+            this.keys = new Object[maxDepth];
+        }
+
+        public Object get(final int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return keys[index];
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    public NAryConstrainingLayeredVirtualIndexState(final Object nAryIndex, final IFn constrainResultFn, final int maxDepth) {
+        this.nAryIndex = nAryIndex;
+        this.constrainResultFn = constrainResultFn;
+        this.joinKeys = new JoinKeys(maxDepth);
+    }
+
+    private boolean constrain(final Object v) {
+        joinKeys.keys[depth] = v;
+        joinKeys.size = depth + 1;
+        return RT.booleanCast(constrainResultFn.invoke(joinKeys));
+    }
+
+    public Object seekValues(final Object k) {
+        final Object v = DbIndexFns.SEEK_VALUES.invoke(nAryIndex, k);
+        if (v == null) {
+            return null;
+        }
+        return constrain(v) ? v : nextValues();
+    }
+
+    public Object nextValues() {
+        for (Object v = DbIndexFns.NEXT_VALUES.invoke(nAryIndex); v != null; v = DbIndexFns.NEXT_VALUES.invoke(nAryIndex)) {
+            if (constrain(v)) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    public void openLevel() {
+        DbIndexFns.OPEN_LEVEL.invoke(nAryIndex);
+        depth++;
+    }
+
+    public void closeLevel() {
+        DbIndexFns.CLOSE_LEVEL.invoke(nAryIndex);
+        depth--;
+    }
+}
@@ -1,9 +1,32 @@
 package crux.index;
 
-public class NAryJoinLayeredVirtualIndexState {
-    public long depth;
+public final class NAryJoinLayeredVirtualIndexState {
+    private final Object[] indexes;
+    private int depth;
 
-    public NAryJoinLayeredVirtualIndexState(long depth) {
-        this.depth = depth;
+    public NAryJoinLayeredVirtualIndexState(final Object[] indexes) {
+        this.indexes = indexes;
+    }
+
+    public Object seekValues(final Object k) {
+        return DbIndexFns.SEEK_VALUES.invoke(indexes[depth], k);
+    }
+
+    public Object nextValues() {
+        return DbIndexFns.NEXT_VALUES.invoke(indexes[depth]);
+    }
+
+    public void openLevel() {
+        DbIndexFns.OPEN_LEVEL.invoke(indexes[depth]);
+        depth++;
+    }
+
+    public void closeLevel() {
+        DbIndexFns.CLOSE_LEVEL.invoke(indexes[depth - 1]);
+        depth--;
+    }
+
+    public int maxDepth() {
+        return indexes.length;
     }
 }
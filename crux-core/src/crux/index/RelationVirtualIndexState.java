@@ -5,6 +5,7 @@ public class RelationVirtualIndexState {
     public Object path;
     public Object indexes;
     public Object key;
+    public long memoryUsage;
 
     public RelationVirtualIndexState(Object tree, Object path, Object indexes, Object key) {
         this.tree = tree;
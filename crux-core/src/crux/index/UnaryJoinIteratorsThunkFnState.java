@@ -1,8 +0,0 @@
-package crux.index;
-
-public class UnaryJoinIteratorsThunkFnState {
-    public Object thunk;
-    public UnaryJoinIteratorsThunkFnState(Object thunk) {
-        this.thunk = thunk;
-    }
-}
@@ -0,0 +1,79 @@
+package crux.index;
+
+import crux.ByteUtils;
+import org.agrona.DirectBuffer;
+
+public final class UnaryJoinVirtualIndexState {
+    private final Object[] indexes;
+    private final Object[] iterators;
+    private final DirectBuffer[] keys;
+    private DirectBuffer maxKey;
+    private int index;
+    private boolean match;
+    private boolean advance;
+    private boolean done;
+
+    public UnaryJoinVirtualIndexState(final Object[] indexes) {
+        this.indexes = indexes;
+        this.iterators = new Object[indexes.length];
+        this.keys = new DirectBuffer[indexes.length];
+        this.done = true;
+    }
+
+    public Object seekValues(final Object k) {
+        for (int i = 0; i < indexes.length; i++) {
+            final Object idx = indexes[i];
+            final DirectBuffer key = (DirectBuffer) DbIndexFns.SEEK_VALUES.invoke(idx, k);
+            if (key == null) {
+                done = true;
+                return null;
+            }
+            int j = i;
+            for (; j > 0 && ByteUtils.compareBuffers(keys[j - 1], key) > 0; j--) {
+                keys[j] = keys[j - 1];
+                iterators[j] = iterators[j - 1];
+            }
+            keys[j] = key;
+            iterators[j] = idx;
+        }
+        index = 0;
+        advance = false;
+        done = false;
+        return nextValues();
+    }
+
+    public Object nextValues() {
+        final int n = keys.length;
+        while (!done) {
+            if (advance) {
+                final Object idx = iterators[index];
+                final Object v = match ? DbIndexFns.NEXT_VALUES.invoke(idx) : DbIndexFns.SEEK_VALUES.invoke(idx, maxKey);
+                if (v == null) {
+                    done = true;
+                    return null;
+                }
+                keys[index] = (DirectBuffer) v;
+                index = (index + 1) % n;
+            }
+            maxKey = keys[(index + n - 1) % n];
+            match = ByteUtils.equalBuffers(keys[index], maxKey);
+            advance = true;
+            if (match) {
+                return maxKey;
+            }
+        }
+        return null;
+    }
+
+    public void openLevel() {
+        for (final Object idx : indexes) {
+            DbIndexFns.OPEN_LEVEL.invoke(idx);
+        }
+    }
+
+    public void closeLevel() {
+        for (final Object idx : indexes) {
+            DbIndexFns.CLOSE_LEVEL.invoke(idx);
+        }
+    }
+}
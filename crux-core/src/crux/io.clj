@@ -5,6 +5,8 @@
             [clojure.tools.logging :as log]
             [taoensso.nippy :as nippy])
   (:import [crux.api ICursor]
+           clojure.lang.MapEntry
+           crux.query.ExternalSorter
            [java.io Closeable DataInputStream DataOutputStream File IOException Reader]
            [java.lang AutoCloseable]
            [java.lang.ref PhantomReference ReferenceQueue]
@@ -154,8 +156,57 @@
    (->> (new-merge-sort-priority-queue comp sorted-seqs)
         (merge-sort-priority-queue->seq))))
 
+(defn nippy-file->seq+cleaner-action
+  "Returns a lazy seq thawing the values frozen to file, which is closed
+  and deleted when the seq is exhausted or by calling the cleaner action."
+  [^File file]
+  (let [in (DataInputStream. (io/input-stream file))
+        cleaner-action (fn []
+                         (.close in)
+                         (.delete file))
+        seq ((fn step []
+               (lazy-seq
+                (try
+                  (when-let [x (nippy/thaw-from-in! in)]
+                    (cons x (step)))
+                  (catch Exception e
+                    (cleaner-action)
+                    (if (or (instance? IOException e)
+                            (instance? IOException (.getCause e)))
+                      nil
+                      (throw e)))))))]
+    [seq cleaner-action]))
+
 (def ^:const default-external-sort-part-size (* 1024 1024))
 
+(defn top-k
+  "Returns the first k elements of seq in comp order, keeping at most k
+  elements in a bounded heap instead of sorting all of seq. Like sort,
+  equal elements keep their order in seq."
+  ([^long k seq]
+   (top-k compare k seq))
+  ([^Comparator comp ^long k seq]
+   (if (pos? k)
+     (let [entry-comp (reify Comparator
+                        (compare [_ a b]
+                          (let [diff (.compare comp (key a) (key b))]
+                            (if (zero? diff)
+                              (Long/compare (val a) (val b))
+                              diff))))
+           pq (PriorityQueue. k (.reversed entry-comp))]
+       (reduce (fn [^long n x]
+                 (let [entry (MapEntry/create x n)]
+                   (cond
+                     (< (.size pq) k) (.add pq entry)
+                     (neg? (.compare entry-comp entry (.peek pq))) (doto pq
+                                                                     (.poll)
+                                                                     (.add entry))))
+                 (inc n))
+               0
+               seq)
+       (map key (sort entry-comp (vec pq))))
+     ())))
+
 (defn external-sort
   ([seq]
    (external-sort compare seq))
@@ -175,29 +226,40 @@
                                  (nippy/freeze-to-out! out x)))
                              (conj acc file)))
                          []))
-             seq+cleaner-actions (for [^File file files]
-                                   (let [in (DataInputStream. (io/input-stream file))
-                                         cleaner-action (fn []
-                                                          (.close in)
-                                                          (.delete file))
-                                         seq ((fn step []
-                                                (lazy-seq
-                                                 (try
-                                                   (when-let [x (nippy/thaw-from-in! in)]
-                                                     (cons x (step)))
-                                                   (catch Exception e
-                                                     (cleaner-action)
-                                                     (if (or (instance? IOException e)
-                                                             (instance? IOException (.getCause e)))
-                                                       nil
-                                                       (throw e)))))))]
-                                     [seq cleaner-action]))
+             seq+cleaner-actions (map nippy-file->seq+cleaner-action files)
              pq (->> (map first seq+cleaner-actions)
                      (new-merge-sort-priority-queue comp))]
          (doseq [[_ cleaner-action] seq+cleaner-actions]
            (register-cleaner pq cleaner-action))
          (merge-sort-priority-queue->seq pq))))))
 
+;; NOTE: rows that fit in memory-budget are sorted in memory with comp.
+;; Larger inputs sort on the binary keys of the values at key-indexes,
+;; only falling back to comp for values without an order preserving
+;; encoding. Rows are then frozen off-heap into runs of up to
+;; memory-budget / parallelism bytes, which are sorted and spilled on
+;; the executor, or earlier once the optional memory-account is
+;; exhausted.
+(defn binary-external-sort [^Comparator comp key-indexes descending
+                            {:keys [^long memory-budget ^long parallelism executor memory-account]} seq]
+  (lazy-seq
+   (let [sorter (ExternalSorter. (int-array key-indexes) (boolean-array descending) comp
+                                 nippy/fast-freeze nippy/fast-thaw
+                                 memory-budget parallelism executor memory-account)]
+     (try
+       (doseq [x seq]
+         (.add sorter x))
+       (catch Throwable t
+         (.close sorter)
+         (throw t)))
+     (let [it (.iterator sorter)]
+       (register-cleaner it #(.close sorter))
+       ((fn step []
+          (lazy-seq
+           (if (.hasNext it)
+             (cons (.next it) (step))
+             (.close sorter)))))))))
+
 (defmacro with-read-lock [lock & body]
   `(let [^StampedLock lock# ~lock
          stamp# (.readLock lock#)]
@@ -0,0 +1,105 @@
+package crux.kv;
+
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.agrona.DirectBuffer;
+import org.agrona.MutableDirectBuffer;
+
+// Blocked bloom filter over ids, which are already hashes, so their
+// bytes are used directly. Each id sets its bits within a single 512
+// bit block, so a lookup touches one cache line. Bits are only ever
+// set, never cleared, and are grouped into pages that are tracked as
+// dirty until written out.
+
+public final class BlockedBloomFilter {
+    private static final int BLOCK_LONGS = 8;
+    private static final int BLOCK_BITS = BLOCK_LONGS * Long.SIZE;
+    private static final int BITS_PER_HASH = 9;
+    public static final int PAGE_BYTES = 4096;
+    private static final int PAGE_LONGS = PAGE_BYTES / Long.BYTES;
+
+    private final AtomicLongArray bits;
+    private final int blockMask;
+    private final int hashes;
+    private final BitSet dirtyPages = new BitSet();
+
+    public BlockedBloomFilter(final long sizeBits, final int hashes) {
+        if (sizeBits < PAGE_BYTES * Byte.SIZE || Long.bitCount(sizeBits) != 1 || sizeBits / Long.SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Expected a power of two size of at least " + (PAGE_BYTES * Byte.SIZE) + " bits, got: " + sizeBits);
+        }
+        if (hashes < 1 || hashes > Long.SIZE / BITS_PER_HASH) {
+            throw new IllegalArgumentException("Expected between 1 and " + (Long.SIZE / BITS_PER_HASH) + " hashes, got: " + hashes);
+        }
+        this.bits = new AtomicLongArray((int) (sizeBits / Long.SIZE));
+        this.blockMask = bits.length() / BLOCK_LONGS - 1;
+        this.hashes = hashes;
+    }
+
+    public long sizeBits() {
+        return (long) bits.length() * Long.SIZE;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    public int pages() {
+        return bits.length() / PAGE_LONGS;
+    }
+
+    private int blockOffset(final DirectBuffer id, final int offset) {
+        return ((int) id.getLong(offset, ByteOrder.BIG_ENDIAN) & blockMask) * BLOCK_LONGS;
+    }
+
+    public void add(final DirectBuffer id, final int offset) {
+        final int block = blockOffset(id, offset);
+        long h = id.getLong(offset + Long.BYTES, ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < hashes; i++, h >>>= BITS_PER_HASH) {
+            final int bit = (int) h & (BLOCK_BITS - 1);
+            final int index = block + (bit >>> 6);
+            final long mask = 1L << bit;
+            long word;
+            while (((word = bits.get(index)) & mask) == 0) {
+                if (bits.compareAndSet(index, word, word | mask)) {
+                    synchronized (dirtyPages) {
+                        dirtyPages.set(index / PAGE_LONGS);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(final DirectBuffer id, final int offset) {
+        final int block = blockOffset(id, offset);
+        long h = id.getLong(offset + Long.BYTES, ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < hashes; i++, h >>>= BITS_PER_HASH) {
+            final int bit = (int) h & (BLOCK_BITS - 1);
+            if ((bits.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int[] drainDirtyPages() {
+        synchronized (dirtyPages) {
+            final int[] pages = dirtyPages.stream().toArray();
+            dirtyPages.clear();
+            return pages;
+        }
+    }
+
+    public void writePage(final int page, final MutableDirectBuffer to) {
+        for (int i = 0; i < PAGE_LONGS; i++) {
+            to.putLong(i * Long.BYTES, bits.get(page * PAGE_LONGS + i), ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    public void readPage(final int page, final DirectBuffer from) {
+        for (int i = 0; i < PAGE_LONGS; i++) {
+            bits.set(page * PAGE_LONGS + i, from.getLong(i * Long.BYTES, ByteOrder.BIG_ENDIAN));
+        }
+    }
+}
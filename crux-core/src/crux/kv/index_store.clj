@@ -3,6 +3,7 @@
             [crux.db :as db]
             [crux.io :as cio]
             [crux.kv :as kv]
+            [crux.lru :as lru]
             [crux.memory :as mem]
             [crux.status :as status]
             [crux.morton :as morton]
@@ -10,12 +11,14 @@
             [clojure.spec.alpha :as s])
   (:import (crux.codec Id EntityTx)
            crux.api.IndexVersionOutOfSyncException
+           crux.kv.BlockedBloomFilter
            java.io.Closeable
            java.nio.ByteOrder
-           [java.util Date HashMap Map]
+           [java.util Date Map]
+           java.util.concurrent.ConcurrentHashMap
            java.util.function.Supplier
            java.util.concurrent.atomic.AtomicBoolean
-           (clojure.lang MapEntry)
+           clojure.lang.MapEntry
            (org.agrona DirectBuffer MutableDirectBuffer ExpandableDirectByteBuffer)))
 
 (set! *unchecked-math* :warn-on-boxed)
@@ -94,6 +97,71 @@
 (defn- key-suffix [^DirectBuffer k ^long prefix-size]
   (mem/slice-buffer k prefix-size (- (.capacity k) prefix-size)))
 
+;;;; Attribute dictionary
+
+;; Schemas have few attributes, but their ids would make up a large
+;; part of every content index key, so each attribute is instead
+;; assigned a compact id, in order of first use, which is stored as an
+;; unsigned varint. Varints are prefix free, so the keys of an
+;; attribute still share a prefix. The dictionary is kept in memory,
+;; and new attributes are stored before any keys using them.
+
+(def ^:private ^:const max-attribute-id-size 5)
+
+(defn- encode-attribute-id ^org.agrona.DirectBuffer [^long n]
+  (let [^MutableDirectBuffer b (mem/allocate-unpooled-buffer max-attribute-id-size)]
+    (loop [n n
+           idx 0]
+      (if (< n 0x80)
+        (do (.putByte b idx (unchecked-byte n))
+            (mem/limit-buffer b (inc idx)))
+        (do (.putByte b idx (unchecked-byte (bit-or (bit-and n 0x7f) 0x80)))
+            (recur (unsigned-bit-shift-right n 7) (inc idx)))))))
+
+(defn- attribute-id-size ^long [^DirectBuffer k ^long offset]
+  (loop [idx offset]
+    (if (neg? (.getByte k idx))
+      (recur (inc idx))
+      (- (inc idx) offset))))
+
+(defn- encode-attribute-dictionary-key-to ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b ^DirectBuffer attr]
+  (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr))))]
+    (.putByte b 0 c/attribute-dictionary-index-id)
+    (.putBytes b c/index-id-size attr 0 (.capacity attr))
+    (mem/limit-buffer b (+ c/index-id-size (.capacity attr)))))
+
+(defn- attribute-id ^org.agrona.DirectBuffer [^Map attr-dictionary a]
+  (.get attr-dictionary (c/->id-buffer a)))
+
+(defn- assign-attribute-ids [kv-store ^Map attr-dictionary attr-buffers]
+  (locking attr-dictionary
+    (let [new-attr-ids (reduce (fn [acc attr-buffer]
+                                 (cond-> acc
+                                   (not (or (.containsKey attr-dictionary attr-buffer)
+                                            (contains? acc attr-buffer)))
+                                   (assoc (mem/copy-to-unpooled-buffer attr-buffer)
+                                          (encode-attribute-id (+ (.size attr-dictionary) (count acc))))))
+                               {}
+                               attr-buffers)]
+      (when (seq new-attr-ids)
+        (kv/store kv-store (for [[attr-buffer attr-id] new-attr-ids]
+                             [(encode-attribute-dictionary-key-to nil attr-buffer) attr-id]))
+        (.putAll attr-dictionary new-attr-ids)))))
+
+(defn- ->attribute-dictionary ^java.util.Map [kv-store]
+  (let [attr-dictionary (ConcurrentHashMap.)]
+    (with-open [snapshot (kv/new-snapshot kv-store)
+                i (kv/new-iterator snapshot)]
+      (let [prefix (doto ^MutableDirectBuffer (mem/allocate-buffer c/index-id-size)
+                     (.putByte 0 c/attribute-dictionary-index-id))]
+        (loop [k (kv/seek i prefix)]
+          (when (and k (mem/buffers=? prefix k c/index-id-size))
+            (.put attr-dictionary
+                  (mem/copy-to-unpooled-buffer (key-suffix k c/index-id-size))
+                  (mem/copy-to-unpooled-buffer (kv/value i)))
+            (recur (kv/next i))))))
+    attr-dictionary))
+
 ;;;; Content indices
 
 (defn- encode-av-key-to
@@ -101,14 +169,13 @@
    (encode-av-key-to b attr mem/empty-buffer))
   (^org.agrona.MutableDirectBuffer
    [^MutableDirectBuffer b ^DirectBuffer attr ^DirectBuffer v]
-   (assert (= c/id-size (.capacity attr)) (mem/buffer->hex attr))
-   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size c/id-size (.capacity v))))]
+   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr) (.capacity v))))]
      (mem/limit-buffer
       (doto b
         (.putByte 0 c/av-index-id)
-        (.putBytes c/index-id-size attr 0 c/id-size)
-        (.putBytes (+ c/index-id-size c/id-size) v 0 (.capacity v)))
-      (+ c/index-id-size c/id-size (.capacity v))))))
+        (.putBytes c/index-id-size attr 0 (.capacity attr))
+        (.putBytes (+ c/index-id-size (.capacity attr)) v 0 (.capacity v)))
+      (+ c/index-id-size (.capacity attr) (.capacity v))))))
 
 (defn- encode-ave-key-to
   (^org.agrona.MutableDirectBuffer[b attr]
@@ -117,15 +184,14 @@
    (encode-ave-key-to b attr v mem/empty-buffer))
   (^org.agrona.MutableDirectBuffer
    [^MutableDirectBuffer b ^DirectBuffer attr ^DirectBuffer v ^DirectBuffer entity]
-   (assert (= c/id-size (.capacity attr)) (mem/buffer->hex attr))
-   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size c/id-size (.capacity v) (.capacity entity))))]
+   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr) (.capacity v) (.capacity entity))))]
      (mem/limit-buffer
       (doto b
         (.putByte 0 c/ave-index-id)
-        (.putBytes c/index-id-size attr 0 c/id-size)
-        (.putBytes (+ c/index-id-size c/id-size) v 0 (.capacity v))
-        (.putBytes (+ c/index-id-size c/id-size (.capacity v)) entity 0 (.capacity entity)))
-      (+ c/index-id-size c/id-size (.capacity v) (.capacity entity))))))
+        (.putBytes c/index-id-size attr 0 (.capacity attr))
+        (.putBytes (+ c/index-id-size (.capacity attr)) v 0 (.capacity v))
+        (.putBytes (+ c/index-id-size (.capacity attr) (.capacity v)) entity 0 (.capacity entity)))
+      (+ c/index-id-size (.capacity attr) (.capacity v) (.capacity entity))))))
 
 (defn- encode-ae-key-to
   (^org.agrona.MutableDirectBuffer [b]
@@ -133,8 +199,6 @@
   (^org.agrona.MutableDirectBuffer [b attr]
    (encode-ae-key-to b attr mem/empty-buffer))
   (^org.agrona.MutableDirectBuffer [b ^DirectBuffer attr ^DirectBuffer entity]
-   (assert (or (zero? (.capacity attr)) (= c/id-size (.capacity attr)))
-           (mem/buffer->hex attr))
    (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity attr) (.capacity entity))))]
      (-> (doto b
            (.putByte 0 c/ae-index-id)
@@ -148,8 +212,6 @@
   (^org.agrona.MutableDirectBuffer [b entity content-hash attr]
    (encode-ecav-key-to b entity content-hash attr mem/empty-buffer))
   (^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b ^DirectBuffer entity ^DirectBuffer content-hash ^DirectBuffer attr ^DirectBuffer v]
-   (assert (or (zero? (.capacity attr)) (= c/id-size (.capacity attr)))
-           (mem/buffer->hex attr))
    (assert (or (zero? (.capacity content-hash)) (= c/id-size (.capacity content-hash)))
            (mem/buffer->hex content-hash))
    (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity entity) (.capacity content-hash) (.capacity attr) (.capacity v))))]
@@ -163,13 +225,15 @@
 
 (defn- decode-ecav-key-from ^crux.kv.index_store.Quad [^DirectBuffer k ^long eid-size]
   (let [length (long (.capacity k))]
-    (assert (<= (+ c/index-id-size eid-size c/id-size c/id-size) length) (mem/buffer->hex k))
+    (assert (< (+ c/index-id-size eid-size c/id-size) length) (mem/buffer->hex k))
     (let [index-id (.getByte k 0)]
       (assert (= c/ecav-index-id index-id))
-      (let [entity (mem/slice-buffer k c/index-id-size eid-size)
+      (let [attr-offset (+ c/index-id-size eid-size c/id-size)
+            attr-size (attribute-id-size k attr-offset)
+            entity (mem/slice-buffer k c/index-id-size eid-size)
             content-hash (Id. (mem/slice-buffer k (+ c/index-id-size eid-size) c/id-size) 0)
-            attr (Id. (mem/slice-buffer k (+ c/index-id-size eid-size c/id-size) c/id-size) 0)
-            value (key-suffix k (+ c/index-id-size eid-size c/id-size c/id-size))]
+            attr (mem/slice-buffer k attr-offset attr-size)
+            value (key-suffix k (+ attr-offset attr-size))]
         (->Quad attr entity content-hash value)))))
 
 (defn- encode-hash-cache-key-to
@@ -355,6 +419,179 @@
        (.putLong b c/index-id-size (c/descending-long tx-id) ByteOrder/BIG_ENDIAN))
      (mem/limit-buffer b (+ c/index-id-size (c/maybe-long-size tx-id))))))
 
+;;;; Eid bloom filter
+
+;; Eids with bitemporal history are added to a bloom filter before
+;; their entity txs are stored, so entity lookups of eids that never
+;; existed can skip the bitemporal indexes. Its dirty pages are stored
+;; in the same batch as the entity txs, together with the latest
+;; completed tx they're consistent with. A filter that doesn't match
+;; the store, or wasn't stored at all, is rebuilt from the index.
+
+(def ^:private ^:const eid-bloom-filter-hashes 4)
+
+(defn- encode-eid-bloom-filter-page-key-to ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b page]
+  (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (c/maybe-long-size page))))]
+    (.putByte b 0 c/eid-bloom-filter-page-index-id)
+    (when page
+      (.putLong b c/index-id-size page ByteOrder/BIG_ENDIAN))
+    (mem/limit-buffer b (+ c/index-id-size (c/maybe-long-size page)))))
+
+(defn- eid-bloom-filter-header [^BlockedBloomFilter eid-bloom-filter latest-completed-tx]
+  {:size (.sizeBits eid-bloom-filter)
+   :hashes (.hashes eid-bloom-filter)
+   :latest-completed-tx latest-completed-tx})
+
+(defn- eid-bloom-filter-kvs [^BlockedBloomFilter eid-bloom-filter latest-completed-tx]
+  (when eid-bloom-filter
+    (-> (for [page (.drainDirtyPages eid-bloom-filter)]
+          [(encode-eid-bloom-filter-page-key-to nil page)
+           (doto (mem/allocate-buffer BlockedBloomFilter/PAGE_BYTES)
+             (->> (.writePage eid-bloom-filter (int page))))])
+        (vec)
+        (conj (meta-kv :crux.kv-indexer/eid-bloom-filter (eid-bloom-filter-header eid-bloom-filter latest-completed-tx))))))
+
+(defn- add-eids-to-bloom-filter [^BlockedBloomFilter eid-bloom-filter entity-txs]
+  (when eid-bloom-filter
+    (doseq [^EntityTx etx entity-txs]
+      (.add eid-bloom-filter (c/->id-buffer (.eid etx)) c/value-type-id-size))))
+
+(defn- might-contain-eid? [^BlockedBloomFilter eid-bloom-filter ^DirectBuffer eid-buffer]
+  (or (nil? eid-bloom-filter)
+      (.mightContain eid-bloom-filter eid-buffer c/value-type-id-size)))
+
+(defn- load-eid-bloom-filter [kv-store ^BlockedBloomFilter eid-bloom-filter]
+  (with-open [snapshot (kv/new-snapshot kv-store)
+              i (kv/new-iterator snapshot)]
+    (let [prefix (encode-eid-bloom-filter-page-key-to nil nil)]
+      (loop [k (kv/seek i prefix)]
+        (when (and k (mem/buffers=? prefix k c/index-id-size))
+          (.readPage eid-bloom-filter (int (.getLong ^DirectBuffer k c/index-id-size ByteOrder/BIG_ENDIAN)) (kv/value i))
+          (recur (kv/next i))))))
+  (.drainDirtyPages eid-bloom-filter)
+  eid-bloom-filter)
+
+(defn- rebuild-eid-bloom-filter [kv-store ^BlockedBloomFilter eid-bloom-filter latest-completed-tx]
+  (with-open [snapshot (kv/new-snapshot kv-store)
+              i (kv/new-iterator snapshot)]
+    (let [prefix-size (+ c/index-id-size c/id-size)
+          ^MutableDirectBuffer prefix (mem/allocate-buffer c/index-id-size)]
+      (.putByte prefix 0 c/entity+vt+tt+tx-id->content-hash-index-id)
+      (loop [k (kv/seek i prefix)]
+        (when (and k (mem/buffers=? prefix k c/index-id-size))
+          (.add eid-bloom-filter k (+ c/index-id-size c/value-type-id-size))
+          (recur (kv/seek i (-> (mem/limit-buffer k prefix-size)
+                                (mem/copy-buffer)
+                                (mem/inc-unsigned-buffer!))))))))
+  (kv/delete kv-store (with-open [snapshot (kv/new-snapshot kv-store)
+                                  i (kv/new-iterator snapshot)]
+                        (vec (all-keys-in-prefix i (encode-eid-bloom-filter-page-key-to nil nil)))))
+  (kv/store kv-store (eid-bloom-filter-kvs eid-bloom-filter latest-completed-tx))
+  eid-bloom-filter)
+
+(defn- ->eid-bloom-filter [kv-store ^long size]
+  (let [eid-bloom-filter (BlockedBloomFilter. size eid-bloom-filter-hashes)
+        latest-completed-tx (read-meta kv-store :crux.kv-indexer/latest-completed-tx)]
+    (if (= (eid-bloom-filter-header eid-bloom-filter latest-completed-tx)
+           (read-meta kv-store :crux.kv-indexer/eid-bloom-filter))
+      (load-eid-bloom-filter kv-store eid-bloom-filter)
+      (rebuild-eid-bloom-filter kv-store eid-bloom-filter latest-completed-tx))))
+
+;;;; Current state
+
+;; Optionally, each eid also maps to the entity tx current at the time
+;; of its latest transaction, together with the valid time it stays
+;; current until and the transaction time it was written at. Lookups at
+;; or after that transaction time, with a valid time in the range the
+;; entity tx is current for, are then a single get, while everything
+;; else falls back to the bitemporal indexes. The index is only trusted
+;; if it has been maintained for every transaction, otherwise it's
+;; cleared on start up and filled in again as eids are transacted.
+
+(def ^:private ^:const current-state-value-size (+ c/id-size (* 5 Long/BYTES)))
+
+(defn- encode-current-state-key-to ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b ^DirectBuffer eid]
+  (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size (.capacity eid))))]
+    (.putByte b 0 c/entity->current-state-index-id)
+    (.putBytes b c/index-id-size eid 0 (.capacity eid))
+    (mem/limit-buffer b (+ c/index-id-size (.capacity eid)))))
+
+(defn- encode-current-state-value ^org.agrona.DirectBuffer [^EntityTx entity-tx ^Date valid-to ^Date written-tt]
+  (let [^MutableDirectBuffer b (mem/allocate-buffer current-state-value-size)
+        ^DirectBuffer content-hash (if entity-tx
+                                     (c/->id-buffer (.content-hash entity-tx))
+                                     c/nil-id-buffer)]
+    (doto b
+      (.putBytes 0 content-hash 0 c/id-size)
+      (.putLong c/id-size (if entity-tx (.getTime ^Date (.vt entity-tx)) Long/MIN_VALUE) ByteOrder/BIG_ENDIAN)
+      (.putLong (+ c/id-size Long/BYTES) (if entity-tx (.getTime ^Date (.tt entity-tx)) Long/MIN_VALUE) ByteOrder/BIG_ENDIAN)
+      (.putLong (+ c/id-size (* 2 Long/BYTES)) (if entity-tx (.tx-id entity-tx) -1) ByteOrder/BIG_ENDIAN)
+      (.putLong (+ c/id-size (* 3 Long/BYTES)) (if valid-to (.getTime valid-to) Long/MAX_VALUE) ByteOrder/BIG_ENDIAN)
+      (.putLong (+ c/id-size (* 4 Long/BYTES)) (.getTime written-tt) ByteOrder/BIG_ENDIAN))
+    (mem/limit-buffer b current-state-value-size)))
+
+(defn- current-state-value ^org.agrona.DirectBuffer [snapshot ^DirectBuffer eid-buffer ^Date valid-time ^Date transact-time]
+  (when-let [^DirectBuffer v (kv/get-value snapshot (encode-current-state-key-to (.get seek-buffer-tl) eid-buffer))]
+    (let [vt (.getTime valid-time)]
+      (when (and (<= (.getLong v c/id-size ByteOrder/BIG_ENDIAN) vt)
+                 (< vt (.getLong v (+ c/id-size (* 3 Long/BYTES)) ByteOrder/BIG_ENDIAN))
+                 (<= (.getLong v (+ c/id-size (* 4 Long/BYTES)) ByteOrder/BIG_ENDIAN) (.getTime transact-time)))
+        v))))
+
+(defn- current-state-content-hash [^DirectBuffer v]
+  (let [content-hash (mem/slice-buffer v 0 c/id-size)]
+    (when-not (mem/buffers=? c/nil-id-buffer content-hash)
+      content-hash)))
+
+(defn- current-state-entity-tx ^crux.codec.EntityTx [^DirectBuffer eid-buffer ^DirectBuffer v]
+  (let [vt (.getLong v c/id-size ByteOrder/BIG_ENDIAN)]
+    (when-not (= Long/MIN_VALUE vt)
+      (cond-> (safe-entity-tx (c/->EntityTx (Id. eid-buffer 0)
+                                            (Date. vt)
+                                            (Date. (.getLong v (+ c/id-size Long/BYTES) ByteOrder/BIG_ENDIAN))
+                                            (.getLong v (+ c/id-size (* 2 Long/BYTES)) ByteOrder/BIG_ENDIAN)
+                                            nil))
+        (current-state-content-hash v) (enrich-entity-tx (current-state-content-hash v))))))
+
+;; The entity txs of a transaction all share its transaction time, so
+;; the one current at that time is either the latest of them valid by
+;; then, or, if there's none valid later, the one current before.
+(defn- current-state-kvs [index-snapshot {:crux.tx/keys [^Date tx-time]} entity-txs]
+  (vec (for [[eid entity-txs] (group-by :eid entity-txs)
+             :let [new-entity-tx (->> entity-txs
+                                      (remove #(pos? (compare (:vt %) tx-time)))
+                                      (sort-by :vt)
+                                      (last))
+                   ^EntityTx prev-entity-tx (db/entity-as-of index-snapshot eid tx-time tx-time)
+                   ^EntityTx entity-tx (if (and new-entity-tx
+                                                (or (nil? prev-entity-tx)
+                                                    (not (neg? (compare (:vt new-entity-tx) (.vt prev-entity-tx))))))
+                                         new-entity-tx
+                                         prev-entity-tx)
+                   vt (some-> entity-tx (.vt))
+                   later? #(or (nil? vt) (pos? (compare % vt)))
+                   valid-to (->> (concat (->> (db/entity-history index-snapshot eid :asc {:start {:crux.db/valid-time vt}})
+                                              (map :vt)
+                                              (filter later?)
+                                              (take 1))
+                                         (filter later? (map :vt entity-txs)))
+                                 (sort)
+                                 (first))]]
+         [(encode-current-state-key-to nil (c/->id-buffer eid))
+          (encode-current-state-value entity-tx valid-to tx-time)])))
+
+(defn- current-state-meta-kv [tx]
+  (meta-kv :crux.kv-indexer/current-state-index tx))
+
+(defn- check-current-state-index [kv-store]
+  (let [latest-completed-tx (read-meta kv-store :crux.kv-indexer/latest-completed-tx)]
+    (when-not (= latest-completed-tx (read-meta kv-store :crux.kv-indexer/current-state-index))
+      (kv/delete kv-store (with-open [snapshot (kv/new-snapshot kv-store)
+                                      i (kv/new-iterator snapshot)]
+                            (vec (all-keys-in-prefix i (doto ^MutableDirectBuffer (mem/allocate-buffer c/index-id-size)
+                                                         (.putByte 0 c/entity->current-state-index-id))))))
+      (kv/store kv-store [(current-state-meta-kv latest-completed-tx)]))))
+
 ;;;; Entity as-of
 
 (defn- find-first-entity-tx-within-range [i min max eid]
@@ -442,6 +679,18 @@
 
 (declare new-kv-index-snapshot)
 
+(def ^:private ^:const value-cache-segments 16)
+
+;; Values are immutable under their hash, so once decoded they're
+;; cached node-wide, shared by all snapshots, rather than only in the
+;; snapshot's own temp-hash-cache. Evictions invalidate the cache
+;; generation, which each snapshot reads before opening, so snapshots
+;; from before an eviction can't put erased values back in the cache.
+(defn- cache-hashed-value [value-cache value-cache-generation value-buffer v]
+  (if value-cache
+    (lru/compute-if-absent-in-generation value-cache value-cache-generation value-buffer mem/copy-to-unpooled-buffer (fn [_] v))
+    v))
+
 (defn- advance-iterator-to-hash-cache-value [i value-buffer]
   (let [hash-cache-prefix-key (encode-hash-cache-key-to (.get seek-buffer-tl) value-buffer)
         found-k (kv/seek i hash-cache-prefix-key)]
@@ -459,6 +708,11 @@
                             decode-value-iterator-delay
                             nested-index-snapshot-state
                             ^Map temp-hash-cache
+                            value-cache
+                            value-cache-generation
+                            ^Map attr-dictionary
+                            ^BlockedBloomFilter eid-bloom-filter
+                            current-state?
                             ^AtomicBoolean closed?]
   Closeable
   (close [_]
@@ -473,66 +727,66 @@
 
   db/IndexSnapshot
   (av [this a min-v entity-resolver-fn]
-    (let [attr-buffer (c/->id-buffer a)
-          prefix (encode-av-key-to nil attr-buffer)
-          i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
-      (some->> (encode-av-key-to (.get seek-buffer-tl)
-                                 attr-buffer
-                                 (buffer-or-value-buffer min-v))
-               (kv/seek i)
-               ((fn step [^DirectBuffer k]
-                  (when k
-                    (cons (key-suffix k (.capacity prefix))
-                          (lazy-seq (step (kv/next i))))))))))
+    (when-let [attr-buffer (attribute-id attr-dictionary a)]
+      (let [prefix (encode-av-key-to nil attr-buffer)
+            i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
+        (some->> (encode-av-key-to (.get seek-buffer-tl)
+                                   attr-buffer
+                                   (buffer-or-value-buffer min-v))
+                 (kv/seek i)
+                 ((fn step [^DirectBuffer k]
+                    (when k
+                      (cons (key-suffix k (.capacity prefix))
+                            (lazy-seq (step (kv/next i)))))))))))
 
   (ave [this a v min-e entity-resolver-fn]
-    (let [attr-buffer (c/->id-buffer a)
-          value-buffer (buffer-or-value-buffer v)
-          prefix (encode-ave-key-to nil attr-buffer value-buffer)
-          i (new-prefix-kv-iterator @level-2-iterator-delay prefix)]
-      (some->> (encode-ave-key-to (.get seek-buffer-tl)
-                                  attr-buffer
-                                  value-buffer
-                                  (buffer-or-value-buffer min-e))
-               (kv/seek i)
-               ((fn step [^DirectBuffer k]
-                  (when k
-                    (let [eid-value-buffer (key-suffix k (.capacity prefix))
-                          eid-buffer (value-buffer->id-buffer this eid-value-buffer)
-                          head (when-let [content-hash-buffer (entity-resolver-fn eid-buffer)]
-                                 (let [version-k (encode-ecav-key-to (.get seek-buffer-tl)
-                                                                     eid-value-buffer
-                                                                     content-hash-buffer
-                                                                     attr-buffer
-                                                                     value-buffer)]
-                                   (when (kv/get-value snapshot version-k)
-                                     eid-value-buffer)))]
-
-                      (if head
-                        (cons head (lazy-seq (step (kv/next i))))
-                        (lazy-seq (step (kv/next i)))))))))))
+    (when-let [attr-buffer (attribute-id attr-dictionary a)]
+      (let [value-buffer (buffer-or-value-buffer v)
+            prefix (encode-ave-key-to nil attr-buffer value-buffer)
+            i (new-prefix-kv-iterator @level-2-iterator-delay prefix)]
+        (some->> (encode-ave-key-to (.get seek-buffer-tl)
+                                    attr-buffer
+                                    value-buffer
+                                    (buffer-or-value-buffer min-e))
+                 (kv/seek i)
+                 ((fn step [^DirectBuffer k]
+                    (when k
+                      (let [eid-value-buffer (key-suffix k (.capacity prefix))
+                            eid-buffer (value-buffer->id-buffer this eid-value-buffer)
+                            head (when-let [content-hash-buffer (entity-resolver-fn eid-buffer)]
+                                   (let [version-k (encode-ecav-key-to (.get seek-buffer-tl)
+                                                                       eid-value-buffer
+                                                                       content-hash-buffer
+                                                                       attr-buffer
+                                                                       value-buffer)]
+                                     (when (kv/get-value snapshot version-k)
+                                       eid-value-buffer)))]
+
+                        (if head
+                          (cons head (lazy-seq (step (kv/next i))))
+                          (lazy-seq (step (kv/next i))))))))))))
 
   (ae [this a min-e entity-resolver-fn]
-    (let [attr-buffer (c/->id-buffer a)
-          prefix (encode-ae-key-to nil attr-buffer)
-          i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
-      (some->> (encode-ae-key-to (.get seek-buffer-tl)
-                                 attr-buffer
-                                 (buffer-or-value-buffer min-e))
-               (kv/seek i)
-               ((fn step [^DirectBuffer k]
-                  (when k
-                    (let [eid-value-buffer (key-suffix k (.capacity prefix))
-                          eid-buffer (value-buffer->id-buffer this eid-value-buffer)]
-                      (if (entity-resolver-fn eid-buffer)
-                        (cons eid-value-buffer (lazy-seq (step (kv/next i))))
-                        (lazy-seq (step (kv/next i)))))))))))
+    (when-let [attr-buffer (attribute-id attr-dictionary a)]
+      (let [prefix (encode-ae-key-to nil attr-buffer)
+            i (new-prefix-kv-iterator @level-1-iterator-delay prefix)]
+        (some->> (encode-ae-key-to (.get seek-buffer-tl)
+                                   attr-buffer
+                                   (buffer-or-value-buffer min-e))
+                 (kv/seek i)
+                 ((fn step [^DirectBuffer k]
+                    (when k
+                      (let [eid-value-buffer (key-suffix k (.capacity prefix))
+                            eid-buffer (value-buffer->id-buffer this eid-value-buffer)]
+                        (if (entity-resolver-fn eid-buffer)
+                          (cons eid-value-buffer (lazy-seq (step (kv/next i))))
+                          (lazy-seq (step (kv/next i))))))))))))
 
   (aev [this a e min-v entity-resolver-fn]
-    (let [attr-buffer (c/->id-buffer a)
+    (let [attr-buffer (attribute-id attr-dictionary a)
           eid-value-buffer (buffer-or-value-buffer e)
           eid-buffer (value-buffer->id-buffer this eid-value-buffer)]
-      (when-let [content-hash-buffer (entity-resolver-fn eid-buffer)]
+      (when-let [content-hash-buffer (and attr-buffer (entity-resolver-fn eid-buffer))]
         (let [prefix (encode-ecav-key-to nil eid-value-buffer content-hash-buffer attr-buffer)
               i (new-prefix-kv-iterator @level-2-iterator-delay prefix)]
           (some->> (encode-ecav-key-to
@@ -550,62 +804,74 @@
   (entity-as-of-resolver [this eid valid-time transact-time]
     (let [i @entity-as-of-iterator-delay
           prefix-size (+ c/index-id-size c/id-size)
-          eid-buffer (c/->id-buffer eid)
-          seek-k (encode-entity+vt+tt+tx-id-key-to (.get seek-buffer-tl)
-                                                   eid-buffer
-                                                   valid-time
-                                                   transact-time
-                                                   nil)]
-      (loop [k (kv/seek i seek-k)]
-        (when (and k (mem/buffers=? seek-k k prefix-size))
-          (if (<= (compare (decode-entity+vt+tt+tx-id-key-as-tt-from k) transact-time) 0)
-            (let [v (kv/value i)]
-              (when-not (mem/buffers=? c/nil-id-buffer v)
-                v))
-            (if morton/*use-space-filling-curve-index?*
-              (let [seek-z (encode-entity-tx-z-number valid-time transact-time)]
-                (when-let [[k v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
-                  (when-not (= ::deleted-entity k)
-                    (c/->id-buffer (.content-hash ^EntityTx v)))))
-              (recur (kv/next i))))))))
+          eid-buffer (c/->id-buffer eid)]
+      (when (might-contain-eid? eid-bloom-filter eid-buffer)
+        (if-let [current-state (when current-state?
+                                 (current-state-value snapshot eid-buffer valid-time transact-time))]
+          (current-state-content-hash current-state)
+          (let [seek-k (encode-entity+vt+tt+tx-id-key-to (.get seek-buffer-tl)
+                                                         eid-buffer
+                                                         valid-time
+                                                         transact-time
+                                                         nil)]
+            (loop [k (kv/seek i seek-k)]
+              (when (and k (mem/buffers=? seek-k k prefix-size))
+                (if (<= (compare (decode-entity+vt+tt+tx-id-key-as-tt-from k) transact-time) 0)
+                  (let [v (kv/value i)]
+                    (when-not (mem/buffers=? c/nil-id-buffer v)
+                      v))
+                  (if morton/*use-space-filling-curve-index?*
+                    (let [seek-z (encode-entity-tx-z-number valid-time transact-time)]
+                      (when-let [[k v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
+                        (when-not (= ::deleted-entity k)
+                          (c/->id-buffer (.content-hash ^EntityTx v)))))
+                    (recur (kv/next i)))))))))))
 
   (entity-as-of [this eid valid-time transact-time]
     (let [i @entity-as-of-iterator-delay
           prefix-size (+ c/index-id-size c/id-size)
-          eid-buffer (c/->id-buffer eid)
-          seek-k (encode-entity+vt+tt+tx-id-key-to (.get seek-buffer-tl)
-                                                   eid-buffer
-                                                   valid-time
-                                                   transact-time
-                                                   nil)]
-      (loop [k (kv/seek i seek-k)]
-        (when (and k (mem/buffers=? seek-k k prefix-size))
-          (let [entity-tx (safe-entity-tx (decode-entity+vt+tt+tx-id-key-from k))
-                v (kv/value i)]
-            (if (<= (compare (.tt entity-tx) transact-time) 0)
-              (cond-> entity-tx
-                (not (mem/buffers=? c/nil-id-buffer v)) (enrich-entity-tx v))
-              (if morton/*use-space-filling-curve-index?*
-                (let [seek-z (encode-entity-tx-z-number valid-time transact-time)]
-                  (when-let [[_ v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
-                    v))
-                (recur (kv/next i)))))))))
+          eid-buffer (c/->id-buffer eid)]
+      (when (might-contain-eid? eid-bloom-filter eid-buffer)
+        (if-let [current-state (when current-state?
+                                 (current-state-value snapshot eid-buffer valid-time transact-time))]
+          (current-state-entity-tx eid-buffer current-state)
+          (let [seek-k (encode-entity+vt+tt+tx-id-key-to (.get seek-buffer-tl)
+                                                         eid-buffer
+                                                         valid-time
+                                                         transact-time
+                                                         nil)]
+            (loop [k (kv/seek i seek-k)]
+              (when (and k (mem/buffers=? seek-k k prefix-size))
+                (let [entity-tx (safe-entity-tx (decode-entity+vt+tt+tx-id-key-from k))
+                      v (kv/value i)]
+                  (if (<= (compare (.tt entity-tx) transact-time) 0)
+                    (cond-> entity-tx
+                      (not (mem/buffers=? c/nil-id-buffer v)) (enrich-entity-tx v))
+                    (if morton/*use-space-filling-curve-index?*
+                      (let [seek-z (encode-entity-tx-z-number valid-time transact-time)]
+                        (when-let [[_ v] (find-entity-tx-within-range-with-highest-valid-time i seek-z morton/z-max-mask eid-buffer nil)]
+                          v))
+                      (recur (kv/next i))))))))))))
 
   (entity-history [this eid sort-order opts]
     (let [i @entity-as-of-iterator-delay
           entity-history-seq (case sort-order
                                :asc entity-history-seq-ascending
                                :desc entity-history-seq-descending)]
-      (entity-history-seq i eid opts)))
+      (when (might-contain-eid? eid-bloom-filter (c/->id-buffer eid))
+        (entity-history-seq i eid opts))))
 
   (decode-value [this value-buffer]
     (assert (some? value-buffer))
     (if (c/can-decode-value-buffer? value-buffer)
       (c/decode-value-buffer value-buffer)
       (or (.get temp-hash-cache value-buffer)
+          (some-> value-cache (lru/get-in-generation value-cache-generation value-buffer))
           (let [i @decode-value-iterator-delay]
             (when (advance-iterator-to-hash-cache-value i value-buffer)
-              (some-> (kv/value i) (mem/<-nippy-buffer)))))))
+              (some->> (kv/value i)
+                       (mem/<-nippy-buffer)
+                       (cache-hashed-value value-cache value-cache-generation value-buffer)))))))
 
   (encode-value [this value]
     (let [value-buffer (c/->value-buffer value)]
@@ -615,15 +881,15 @@
       value-buffer))
 
   (open-nested-index-snapshot [this]
-    (let [nested-index-snapshot (new-kv-index-snapshot snapshot temp-hash-cache false)]
+    (let [nested-index-snapshot (new-kv-index-snapshot snapshot temp-hash-cache value-cache value-cache-generation attr-dictionary eid-bloom-filter current-state? false)]
       (swap! nested-index-snapshot-state conj nested-index-snapshot)
       nested-index-snapshot)))
 
 ;;;; IndexStore
 
-(defn- ->content-idx-kvs [docs]
+(defn- ->content-idx-kvs [value-cache attr-dictionary docs]
   (let [attr-bufs (->> (into #{} (mapcat keys) (vals docs))
-                       (into {} (map (juxt identity c/->id-buffer))))]
+                       (into {} (map (juxt identity (partial attribute-id attr-dictionary)))))]
     (->> (for [[content-hash doc] docs
                :let [id (:crux.db/id doc)
                      eid-value-buffer (c/->value-buffer id)
@@ -638,10 +904,12 @@
                     (MapEntry/create (encode-ae-key-to nil a eid-value-buffer) mem/empty-buffer)
                     (MapEntry/create (encode-ecav-key-to nil eid-value-buffer content-hash a value-buffer) mem/empty-buffer)]
              (not (c/can-decode-value-buffer? value-buffer))
-             (conj (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer) (mem/->nippy-buffer v)))))
-         (apply concat))))
+             (conj (do (some-> value-cache (cache-hashed-value (lru/current-generation value-cache) value-buffer v))
+                       (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer) (mem/->nippy-buffer v))))))
+         (apply concat)
+         (doall))))
 
-(defn- new-kv-index-snapshot [snapshot temp-hash-cache close-snapshot?]
+(defn- new-kv-index-snapshot [snapshot temp-hash-cache value-cache value-cache-generation attr-dictionary eid-bloom-filter current-state? close-snapshot?]
   (->KvIndexSnapshot snapshot
                      close-snapshot?
                      (delay (kv/new-iterator snapshot))
@@ -650,30 +918,38 @@
                      (delay (kv/new-iterator snapshot))
                      (atom [])
                      temp-hash-cache
+                     value-cache
+                     value-cache-generation
+                     attr-dictionary
+                     eid-bloom-filter
+                     current-state?
                      (AtomicBoolean.)))
 
-(defrecord KvIndexStore [kv-store]
+(defrecord KvIndexStore [kv-store value-cache attr-dictionary eid-bloom-filter current-state?]
   db/IndexStore
   (index-docs [this docs]
-    (let [crux-db-id (c/->id-buffer :crux.db/id)
+    (let [crux-db-id (attribute-id attr-dictionary :crux.db/id)
           docs (with-open [snapshot (kv/new-snapshot kv-store)]
                  (->> docs
                       (into {} (remove (fn [[k doc]]
                                          (let [eid-value (c/->value-buffer (:crux.db/id doc))
                                                content-hash (c/->id-buffer k)]
-                                           (kv/get-value snapshot (encode-ecav-key-to (.get seek-buffer-tl)
-                                                                                      eid-value
-                                                                                      content-hash
-                                                                                      crux-db-id
-                                                                                      eid-value))))))
+                                           (and crux-db-id
+                                                (kv/get-value snapshot (encode-ecav-key-to (.get seek-buffer-tl)
+                                                                                           eid-value
+                                                                                           content-hash
+                                                                                           crux-db-id
+                                                                                           eid-value)))))))
                       not-empty))
-          content-idx-kvs (->content-idx-kvs docs)]
+          _ (assign-attribute-ids kv-store attr-dictionary (->> (vals docs)
+                                                                (into #{} (comp (mapcat keys) (map c/->id-buffer)))))
+          content-idx-kvs (->content-idx-kvs value-cache attr-dictionary docs)]
       (some->> (seq content-idx-kvs) (kv/store kv-store))
       {:bytes-indexed (->> content-idx-kvs (transduce (comp (mapcat seq) (map mem/capacity)) +))
        :indexed-docs docs}))
 
   (unindex-eids [this eids]
-    (let [{:keys [tombstones ks]} (with-open [snapshot (kv/new-snapshot kv-store)
+    (let [{:keys [tombstones ks hashed-values current-state-ks]} (with-open [snapshot (kv/new-snapshot kv-store)
                                               bitemp-i (kv/new-iterator snapshot)
                                               ecav-i (kv/new-iterator snapshot)
                                               av-i (kv/new-iterator snapshot)]
@@ -685,7 +961,7 @@
 
                                          (reduce (fn [acc [eid ^DirectBuffer eid-value-buffer ecav-key]]
                                                    (let [quad ^Quad (decode-ecav-key-from ecav-key (.capacity eid-value-buffer))
-                                                         attr-buffer (c/->id-buffer (.attr quad))
+                                                         attr-buffer (.attr quad)
                                                          value-buffer (.value quad)
                                                          shared-av? (> (->> (all-keys-in-prefix av-i (encode-ave-key-to nil
                                                                                                                         attr-buffer
@@ -710,26 +986,46 @@
                                                                                                   attr-buffer
                                                                                                   value-buffer))
                                                        (not (c/can-decode-value-buffer? value-buffer))
-                                                       (update :ks conj (encode-hash-cache-key-to nil value-buffer eid-value-buffer)))))
+                                                       (-> (update :ks conj (encode-hash-cache-key-to nil value-buffer eid-value-buffer))
+                                                           (update :hashed-values conj value-buffer)))))
                                                  {:tombstones {}
+                                                  :hashed-values []
                                                   :ks (into #{}
                                                             (mapcat (fn [eid]
                                                                       (let [eid-id-buffer (c/->id-buffer eid)]
                                                                         (into (set (all-keys-in-prefix bitemp-i (encode-entity+vt+tt+tx-id-key-to nil eid-id-buffer)))
                                                                               (set (all-keys-in-prefix bitemp-i (encode-entity+z+tx-id-key-to nil eid-id-buffer)))))))
-                                                            eids)})))]
-
-      (kv/delete kv-store ks)
+                                                            eids)
+                                                  :current-state-ks (vec (for [eid eids]
+                                                                           (encode-current-state-key-to nil (c/->id-buffer eid))))})))]
+
+      (if value-cache
+        (lru/invalidate-generation value-cache
+                                   (fn []
+                                     (kv/delete kv-store (concat ks current-state-ks))
+                                     (doseq [value-buffer hashed-values]
+                                       (lru/evict-any-generation value-cache value-buffer))))
+        (kv/delete kv-store (concat ks current-state-ks)))
       {:tombstones tombstones}))
 
   (mark-tx-as-failed [this {:crux.tx/keys [tx-id] :as tx}]
-    (kv/store kv-store [(meta-kv :crux.kv-indexer/latest-completed-tx tx)
-                        [(encode-failed-tx-id-key-to nil tx-id) mem/empty-buffer]]))
+    (kv/store kv-store (concat [(meta-kv :crux.kv-indexer/latest-completed-tx tx)
+                                [(encode-failed-tx-id-key-to nil tx-id) mem/empty-buffer]]
+                               (eid-bloom-filter-kvs eid-bloom-filter tx)
+                               (when current-state?
+                                 [(current-state-meta-kv tx)]))))
 
   (index-entity-txs [this tx entity-txs]
-    (kv/store kv-store (->> (conj (mapcat etx->kvs entity-txs)
-                                  (meta-kv :crux.kv-indexer/latest-completed-tx tx))
-                            (into (sorted-map-by mem/buffer-comparator)))))
+    (let [current-state-kvs (when current-state?
+                              (with-open [index-snapshot (db/open-index-snapshot this)]
+                                (conj (current-state-kvs index-snapshot tx entity-txs)
+                                      (current-state-meta-kv tx))))]
+      (add-eids-to-bloom-filter eid-bloom-filter entity-txs)
+      (kv/store kv-store (->> (concat (mapcat etx->kvs entity-txs)
+                                      [(meta-kv :crux.kv-indexer/latest-completed-tx tx)]
+                                      (eid-bloom-filter-kvs eid-bloom-filter tx)
+                                      current-state-kvs)
+                              (into (sorted-map-by mem/buffer-comparator))))))
 
   (store-index-meta [_ k v]
     (store-meta kv-store k v))
@@ -748,7 +1044,8 @@
       (some? (kv/get-value snapshot (encode-failed-tx-id-key-to nil tx-id)))))
 
   (open-index-snapshot [this]
-    (new-kv-index-snapshot (kv/new-snapshot kv-store) (HashMap.) true))
+    (let [value-cache-generation (some-> value-cache (lru/current-generation))]
+      (new-kv-index-snapshot (kv/new-snapshot kv-store) (ConcurrentHashMap.) value-cache value-cache-generation attr-dictionary eid-bloom-filter current-state? true)))
 
   status/Status
   (status-map [this]
@@ -758,7 +1055,24 @@
 
 (defn ->kv-index-store {::sys/deps {:kv-store 'crux.mem-kv/->kv-store}
                         ::sys/args {:skip-index-version-bump {:spec (s/tuple int? int?)
-                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}}}
-  [{:keys [kv-store] :as opts}]
+                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}
+                                    :eid-bloom-filter-size {:doc "Bits of the bloom filter over entity ids with history, a power of two, 0 disables"
+                                                            :default (* 16 1024 1024)
+                                                            :spec ::sys/nat-int}
+                                    :value-cache-size {:doc "Number of decoded hashed values, like keywords and maps, cached for all queries, 0 disables"
+                                                       :default 65536
+                                                       :spec ::sys/nat-int}
+                                    :current-state-index? {:doc "Maintain an index of the current state of each entity, so lookups at the latest transaction time skip the bitemporal indexes"
+                                                           :default false
+                                                           :spec ::sys/boolean}}}
+  [{:keys [kv-store eid-bloom-filter-size value-cache-size current-state-index?] :as opts}]
   (check-and-store-index-version opts)
-  (->KvIndexStore kv-store))
+  (when current-state-index?
+    (check-current-state-index kv-store))
+  (->KvIndexStore kv-store
+                  (when (and value-cache-size (pos? (long value-cache-size)))
+                    (lru/new-generational-cache value-cache-size value-cache-segments))
+                  (->attribute-dictionary kv-store)
+                  (when (and eid-bloom-filter-size (pos? (long eid-bloom-filter-size)))
+                    (->eid-bloom-filter kv-store eid-bloom-filter-size))
+                  (boolean current-state-index?)))
@@ -5,7 +5,7 @@
   (:import [clojure.lang Counted ILookup]
            java.io.Closeable
            java.util.concurrent.locks.StampedLock
-           java.util.concurrent.atomic.AtomicBoolean
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong]
            java.util.function.Function
            java.util.LinkedHashMap))
 
@@ -55,3 +55,81 @@
       Counted
       (count [_]
         (.size cache)))))
+
+;; Shared between threads, the segmented cache is split by key hash
+;; into caches of their own, to reduce lock contention.
+
+(defn new-segmented-cache [^long size ^long segments]
+  (let [segments (vec (repeatedly segments #(new-cache (max 1 (quot size segments)))))
+        segment-for (fn [k]
+                      (nth segments (Math/floorMod (long (hash k)) (long (count segments)))))]
+    (reify
+      LRUCache
+      (compute-if-absent [_ k stored-key-fn f]
+        (compute-if-absent (segment-for k) k stored-key-fn f))
+
+      (evict [_ k]
+        (evict (segment-for k) k))
+
+      ILookup
+      (valAt [_ k]
+        (.valAt ^ILookup (segment-for k) k))
+
+      (valAt [_ k default]
+        (.valAt ^ILookup (segment-for k) k default))
+
+      Counted
+      (count [_]
+        (reduce + (map count segments))))))
+
+;; The generational cache is a segmented cache whose values are tagged
+;; with the generation they were computed in, and only returned to
+;; readers of the current one, so invalidating it is a single
+;; increment, even against values still being computed. The generation
+;; is incremented both before and after the change it guards, readers
+;; of the odd generation in between bypassing the cache, as they may
+;; see either side of the change.
+
+(defrecord GenerationalCache [cache ^AtomicLong generation])
+
+(defn new-generational-cache ^crux.lru.GenerationalCache [^long size ^long segments]
+  (->GenerationalCache (new-segmented-cache size segments) (AtomicLong.)))
+
+(defn current-generation ^long [^GenerationalCache cache]
+  (.get ^AtomicLong (.generation cache)))
+
+(defn invalidate-generation [^GenerationalCache cache f]
+  (.incrementAndGet ^AtomicLong (.generation cache))
+  (try
+    (f)
+    (finally
+      (.incrementAndGet ^AtomicLong (.generation cache)))))
+
+(defn- current-generation? [^GenerationalCache cache generation]
+  (and (even? (long generation))
+       (= generation (current-generation cache))))
+
+(defn get-in-generation [^GenerationalCache cache generation k]
+  (when (current-generation? cache generation)
+    (let [entry (.valAt ^ILookup (.cache cache) k)]
+      (when (= generation (first entry))
+        (second entry)))))
+
+(defn evict-any-generation [^GenerationalCache cache k]
+  (evict (.cache cache) k))
+
+(defn compute-if-absent-in-generation [^GenerationalCache cache generation k stored-key-fn f]
+  (if-not (current-generation? cache generation)
+    (f k)
+    (let [segmented-cache (.cache cache)
+          entry (.valAt ^ILookup segmented-cache k)]
+      (if (and entry (= generation (first entry)))
+        (second entry)
+        (do (when entry
+              (evict segmented-cache k))
+            (let [[entry-generation v] (compute-if-absent segmented-cache k stored-key-fn
+                                                          (fn [k]
+                                                            [generation (f k)]))]
+              (if (= generation entry-generation)
+                v
+                (f k))))))))
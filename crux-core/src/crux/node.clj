@@ -20,6 +20,7 @@
             [clojure.pprint :as pp])
   (:import (crux.api ICruxAPI ICruxAsyncIngestAPI NodeOutOfSyncException ICursor
                      QueryState QueryState$QueryStatus QueryState$QueryError)
+           crux.query.MemoryAccount
            (java.io Closeable Writer)
            (java.lang AutoCloseable)
            java.util.function.Consumer
@@ -85,6 +86,10 @@
                   (- (.getTime started-at) (.getTime finished-at))))
        (take slow-queries-max-count)))
 
+(defn- with-peak-memory-usage [{:keys [^MemoryAccount memory-account] :as query}]
+  (cond-> (dissoc query :memory-account)
+    memory-account (assoc :peak-memory-usage (.peak memory-account))))
+
 (defrecord CruxNode [kv-store tx-log document-store index-store tx-ingester bus query-engine
                      !running-queries close-fn !system closed? ^StampedLock lock]
   ICruxAPI
@@ -186,7 +191,12 @@
                                     (select-keys ev [:committed?])
                                     (select-keys submitted-tx [::tx/tx-time ::tx/tx-id])
                                     (when (:with-tx-ops? event-opts)
-                                      {:crux/tx-ops (txc/tx-events->tx-ops document-store tx-events)})))))))
+                                      {:crux/tx-ops (txc/tx-events->tx-ops document-store tx-events)})))))
+
+      :crux/query-delta
+      (q/listen-query-deltas query-engine (:query event-opts)
+                             (fn [delta]
+                               (.accept ^Consumer consumer delta)))))
 
   (latestCompletedTx [this]
     (cio/with-read-lock lock
@@ -197,7 +207,8 @@
     (db/latest-submitted-tx tx-log))
 
   (activeQueries [this]
-    (map qs/->QueryState (vals (:in-progress @!running-queries))))
+    (->> (vals (:in-progress @!running-queries))
+         (map (comp qs/->QueryState with-peak-memory-usage))))
 
   (recentQueries [this]
     (let [running-queries (swap! !running-queries update :completed clean-completed-queries this)]
@@ -230,8 +241,9 @@
 (defn- swap-finished-query! [!running-queries {:keys [query-id] :as query} {:keys [bus] :as  node-opts}]
   (loop []
     (let [queries @!running-queries
-          query (merge (get-in queries [:in-progress query-id])
-                       query)
+          query (-> (merge (get-in queries [:in-progress query-id])
+                           query)
+                    (with-peak-memory-usage))
           slow-query? (slow-query? query node-opts)]
       (if-not (compare-and-set! !running-queries
                                 queries
@@ -248,11 +260,12 @@
 
 (defn attach-current-query-listeners [!running-queries {:keys [bus] :as node-opts}]
   (bus/listen bus {:crux/event-types #{:crux.query/submitted-query}}
-              (fn [{::q/keys [query-id query]}]
-                (swap! !running-queries assoc-in [:in-progress query-id] {:query-id query-id
-                                                                          :started-at (Date.)
-                                                                          :query query
-                                                                          :status :in-progress})))
+              (fn [{::q/keys [query-id query memory-account]}]
+                (swap! !running-queries assoc-in [:in-progress query-id] (cond-> {:query-id query-id
+                                                                                  :started-at (Date.)
+                                                                                  :query query
+                                                                                  :status :in-progress}
+                                                                           memory-account (assoc :memory-account memory-account)))))
 
   (bus/listen bus {:crux/event-types #{:crux.query/failed-query}}
               (fn [{::q/keys [query-id error]}]
@@ -1,5 +1,6 @@
 (ns ^:no-doc crux.query
-  (:require [clojure.set :as set]
+  (:require [clojure.java.io :as io]
+            [clojure.set :as set]
             [clojure.spec.alpha :as s]
             [clojure.tools.logging :as log]
             [clojure.walk :as w]
@@ -16,18 +17,26 @@
             [crux.api :as api]
             [crux.tx :as tx]
             [crux.tx.conform :as txc]
+            [crux.tx.event :as txe]
             [taoensso.nippy :as nippy]
             [edn-query-language.core :as eql]
             [clojure.string :as string]
             [crux.system :as sys]
             [clojure.pprint :as pp])
   (:import [clojure.lang Box ExceptionInfo MapEntry]
-           (crux.api ICruxDatasource HistoryOptions HistoryOptions$SortOrder NodeOutOfSyncException)
+           crux.ByteUtils
+           (crux.api ICruxDatasource IPreparedQuery HistoryOptions HistoryOptions$SortOrder NodeOutOfSyncException)
            crux.codec.EntityTx
-           crux.index.IndexStoreIndexState
-           (java.io Closeable Writer)
-           (java.util Comparator Date List UUID)
-           [java.util.concurrent Future Executors ScheduledExecutorService TimeoutException TimeUnit]))
+           crux.sketch.AttributeSketch
+           [crux.index IndexProfile IndexStoreIndexState JoinKeysBatch]
+           [crux.query GroupAccumulator GroupHashTable MemoryAccount]
+           (java.io Closeable DataOutputStream File Writer)
+           (java.util ArrayDeque ArrayList Comparator Date HashMap HashSet LinkedHashMap LinkedHashSet List Map Map$Entry Set UUID)
+           [java.util.concurrent Callable CancellationException ConcurrentHashMap ExecutionException ExecutorService Future Executors ScheduledExecutorService TimeoutException TimeUnit]
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong]
+           java.util.concurrent.locks.StampedLock
+           java.util.function.Function
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]))
 
 (defn- logic-var? [x]
   (and (symbol? x)
@@ -142,6 +151,7 @@
 (s/def ::offset nat-int?)
 (s/def ::limit nat-int?)
 (s/def ::full-results? boolean?)
+(s/def ::profile? boolean?)
 
 (s/def ::order-element (s/and vector?
                               (s/cat :find-arg (s/or :logic-var logic-var?
@@ -151,6 +161,8 @@
 
 (s/def ::timeout nat-int?)
 (s/def ::batch-size pos-int?)
+(s/def ::operator-memory-budget pos-int?)
+(s/def ::query-memory-budget pos-int?)
 
 (defmulti pred-args-spec first)
 
@@ -216,11 +228,21 @@
 
 
 (s/def ::query (s/and (s/conformer #'normalize-query)
-                      (s/keys :req-un [::find ::where] :opt-un [::args ::rules ::offset ::limit ::order-by ::timeout ::full-results? ::batch-size])))
+                      (s/keys :req-un [::find ::where] :opt-un [::args ::rules ::offset ::limit ::order-by ::timeout ::full-results? ::batch-size ::operator-memory-budget ::query-memory-budget ::profile?])))
 
 
 (defrecord ConformedQuery [q-normalized q-conformed])
 
+(defn- with-query-args ^ConformedQuery [conformed-query args]
+  (if args
+    (do
+      (when-not (s/valid? ::args args)
+        (throw (ex-info (str "Spec assertion failed\n" (s/explain-str ::args args)) (s/explain-data ::args args))))
+      (-> conformed-query
+          (assoc-in [:q-normalized :args] args)
+          (assoc-in [:q-conformed :args] args)))
+    conformed-query))
+
 (defn- normalize-and-conform-query ^ConformedQuery [conform-cache q]
   (let [{:keys [args] :as q} (try
                                (normalize-query q)
@@ -237,16 +259,9 @@
                              (throw (ex-info (str "Spec assertion failed\n" (s/explain-str ::query q)) (s/explain-data ::query q))))
                            (let [q (normalize-query q)]
                              (->ConformedQuery q (s/conform ::query q)))))]
-    (if args
-      (do
-        (when-not (s/valid? ::args args)
-          (throw (ex-info (str "Spec assertion failed\n" (s/explain-str ::args args)) (s/explain-data ::args args))))
-        (-> conformed-query
-            (assoc-in [:q-normalized :args] args)
-            (assoc-in [:q-conformed :args] args)))
-      conformed-query)))
+    (with-query-args conformed-query args)))
 
-(declare open-index-snapshot build-sub-query)
+(declare open-index-snapshot build-sub-query reserve-memory-usage!)
 
 ;; NOTE: :min-count generates boxed math warnings, so this goes below
 ;; the spec.
@@ -552,9 +567,77 @@
     (or (find arg (symbol (name var)))
         (find arg (keyword (name var))))))
 
-(defn- new-binary-index [{:keys [e a v] :as clause} {:keys [entity-resolver-fn]} index-snapshot {:keys [vars-in-join-order]}]
+;; Profiling
+
+;; Queries run with :profile? count the seeks, nexts and values of the
+;; indexes of each clause and join var, and the documents they fetch.
+;; Indexes share the counters of their key, as sub-queries and
+;; partitions may build the same index many times, so a profile takes
+;; a fixed amount of memory however often they are rebuilt.
+
+(defn- new-query-profile []
+  {:indexes (ConcurrentHashMap.)
+   :docs (IndexProfile.)
+   :rows (AtomicLong.)
+   :start-ns (System/nanoTime)})
+
+(defn- profile-index [{::keys [profile]} k idx]
+  (if profile
+    (let [index-profile (.computeIfAbsent ^ConcurrentHashMap (:indexes profile) k
+                                          (reify Function
+                                            (apply [_ _]
+                                              (IndexProfile.))))]
+      (idx/new-profiling-virtual-index idx index-profile))
+    idx))
+
+(defn- profiling-document-store [document-store ^IndexProfile profile]
+  (reify db/DocumentStore
+    (submit-docs [_ docs]
+      (db/submit-docs document-store docs))
+
+    (fetch-docs [_ ids]
+      (let [start (System/nanoTime)
+            docs (db/fetch-docs document-store ids)]
+        (.add profile 1 0 (count docs) (- (System/nanoTime) start))
+        docs))))
+
+(defn- with-query-profile [db profile]
+  (-> db
+      (assoc ::profile profile)
+      (update :document-store profiling-document-store (:docs profile))))
+
+(defn- nanos->ms ^double [^long nanos]
+  (/ nanos 1000000.0))
+
+(defn- index-profile->map [^IndexProfile profile]
+  {:seeks (.seeks profile)
+   :nexts (.nexts profile)
+   :values (.values profile)
+   :time-ms (nanos->ms (.nanos profile))})
+
+(defn- query-profile-summary [{:keys [^Map indexes ^IndexProfile docs ^AtomicLong rows ^long start-ns]}]
+  (let [k->profile (into {} indexes)
+        ks (keys k->profile)]
+    {:rows (.get rows)
+     :time-ms (nanos->ms (- (System/nanoTime) start-ns))
+     :clauses (vec (for [[clause ks] (->> ks
+                                          (filter (comp #{:clause} first))
+                                          (group-by second))]
+                     {:clause clause
+                      :vars (into {} (for [[_ _ var :as k] ks]
+                                       [var (index-profile->map (k->profile k))]))}))
+     :vars (vec (for [[_ var :as k] ks
+                      :when (= :var (first k))]
+                  (assoc (index-profile->map (k->profile k)) :var var)))
+     :doc-fetches {:fetches (.seeks docs)
+                   :docs (.values docs)
+                   :time-ms (nanos->ms (.nanos docs))}}))
+
+(defn- new-binary-index [{:keys [e a v] :as clause} {:keys [entity-resolver-fn] :as db} index-snapshot {:keys [vars-in-join-order]}]
   (let [order (keep #{e v} vars-in-join-order)
-        nested-index-snapshot (db/open-nested-index-snapshot index-snapshot)]
+        nested-index-snapshot (db/open-nested-index-snapshot index-snapshot)
+        profile-clause-index (fn [var idx]
+                               (profile-index db [:clause [e a v] var] idx))]
     (if (= v (first order))
       (let [v-idx (idx/new-index-store-index
                    (fn [k]
@@ -563,7 +646,7 @@
                    (fn [k]
                      (db/ave nested-index-snapshot a (.key ^IndexStoreIndexState (.state v-idx)) k entity-resolver-fn)))]
         (log/debug :join-order :ave (cio/pr-edn-str v) e (cio/pr-edn-str clause))
-        (idx/new-n-ary-join-layered-virtual-index [v-idx e-idx]))
+        (idx/new-n-ary-join-layered-virtual-index [(profile-clause-index v v-idx) (profile-clause-index e e-idx)]))
       (let [e-idx (idx/new-index-store-index
                    (fn [k]
                      (db/ae nested-index-snapshot a k entity-resolver-fn)))
@@ -571,7 +654,7 @@
                    (fn [k]
                      (db/aev nested-index-snapshot a (.key ^IndexStoreIndexState (.state e-idx)) k entity-resolver-fn)))]
         (log/debug :join-order :aev e (cio/pr-edn-str v) (cio/pr-edn-str clause))
-        (idx/new-n-ary-join-layered-virtual-index [e-idx v-idx])))))
+        (idx/new-n-ary-join-layered-virtual-index [(profile-clause-index e e-idx) (profile-clause-index v v-idx)])))))
 
 (defn- sort-triple-clauses [stats triple-clauses]
   (sort-by (fn [{:keys [a]}]
@@ -583,6 +666,137 @@
       (idx/new-relation-virtual-index (mapv vector v) 1 encode-value-fn)
       (idx/new-singleton-virtual-index v encode-value-fn))))
 
+;; Join order cost model. The join order is picked greedily, the next
+;; var being the one with the lowest estimated cost: its cardinality
+;; when scanned on its own, or the lowest fan-out of the clauses it
+;; shares with an already bound var. Distinct counts and literal
+;; frequencies come from the attribute sketches maintained by the
+;; ingester, falling back to assuming unique values when an attribute
+;; has no sketch, like stats passed directly to query-plan-for.
+
+(def ^:private ^:const range-selectivity (/ 1.0 3.0))
+
+(defn- with-attribute-sketches [stats index-store]
+  (let [attr->sketch (memoize
+                      (fn [a]
+                        (some-> (db/read-index-meta index-store {:crux/attribute-sketch a})
+                                (AttributeSketch/fromByteArray))))]
+    (vary-meta (or stats {}) assoc ::attr->sketch attr->sketch)))
+
+(defn- attr-sketch ^crux.sketch.AttributeSketch [stats a]
+  (when-let [attr->sketch (::attr->sketch (meta stats))]
+    (attr->sketch a)))
+
+(defn- attr-value-count ^double [stats a]
+  (double (get stats a 0)))
+
+(defn- attr-distinct-values ^double [stats a]
+  (let [value-count (attr-value-count stats a)]
+    (if-let [sketch (attr-sketch stats a)]
+      (min value-count (.distinctValues sketch))
+      value-count)))
+
+(defn- attr-distinct-entities ^double [stats a]
+  (let [value-count (attr-value-count stats a)]
+    (if-let [sketch (attr-sketch stats a)]
+      (min value-count (.distinctEntities sketch))
+      value-count)))
+
+(defn- attr-value-frequency ^double [stats a]
+  (let [distinct-values (attr-distinct-values stats a)]
+    (if (pos? distinct-values)
+      (/ (attr-value-count stats a) distinct-values)
+      0.0)))
+
+(defn- attr-values-per-entity ^double [stats a]
+  (let [distinct-entities (attr-distinct-entities stats a)]
+    (if (pos? distinct-entities)
+      (/ (attr-value-count stats a) distinct-entities)
+      0.0)))
+
+(defn- literal-cardinality ^double [x]
+  (double (if (c/multiple-values? x)
+            (count x)
+            1)))
+
+(defn- attr-literal-frequency ^double [stats a v]
+  (if-let [sketch (attr-sketch stats a)]
+    (double (reduce + (for [v (c/vectorize-value v)]
+                        (.valueFrequency sketch (c/->value-buffer v)))))
+    (* (literal-cardinality v) (attr-value-frequency stats a))))
+
+(defn- clause-cardinality ^double [stats {:keys [e a v]} x]
+  (if (= x e)
+    (if (literal? v)
+      (attr-literal-frequency stats a v)
+      (attr-distinct-entities stats a))
+    (if (literal? e)
+      (* (literal-cardinality e) (attr-values-per-entity stats a))
+      (attr-distinct-values stats a))))
+
+(defn- clause-fan-out ^double [stats {:keys [e a]} bound-x]
+  (cond
+    (= bound-x e) (attr-values-per-entity stats a)
+    (literal? bound-x) (attr-literal-frequency stats a bound-x)
+    :else (attr-value-frequency stats a)))
+
+(defn- cost-based-join-plan
+  "Returns the [x cost] pairs of the triple clause vars and literals in
+  join order, the cost of each being its estimated rows per row of the
+  ones before it."
+  [stats triple-clauses arg-vars range-vars var->frequency]
+  (let [arg-vars (set arg-vars)
+        range-vars (set range-vars)
+        x->clauses (reduce
+                    (fn [acc {:keys [e v] :as clause}]
+                      (-> acc
+                          (update e (fnil conj []) clause)
+                          (cond-> (not= e v) (update v (fnil conj []) clause))))
+                    {}
+                    triple-clauses)
+        xs (distinct (concat (mapcat (juxt :e :v) triple-clauses) arg-vars))
+        x->rank (zipmap xs (range))
+        range-adjust (fn [x cost]
+                       (max 1.0 (cond-> (double cost)
+                                  (contains? range-vars x) (* (double range-selectivity)))))
+        x->cardinality (->> (for [x xs]
+                              [x (cond
+                                   (literal? x) (literal-cardinality x)
+                                   (contains? arg-vars x) 1.0
+                                   :else (range-adjust x (->> (get x->clauses x)
+                                                              (map #(clause-cardinality stats % x))
+                                                              (reduce min Double/MAX_VALUE))))])
+                            (into {}))
+        x->sort-key (fn [x->cost x]
+                      [(get x->cost x)
+                       (cond
+                         (literal? x) 0
+                         (contains? arg-vars x) 1
+                         :else 2)
+                       (- (long (get var->frequency x 0)))
+                       (get x->rank x)])]
+    (loop [join-plan []
+           x->cost x->cardinality]
+      (if (empty? x->cost)
+        join-plan
+        (let [x (first (sort-by (partial x->sort-key x->cost) (keys x->cost)))
+              cost (get x->cost x)
+              x->cost (reduce
+                       (fn [x->cost {:keys [e v] :as clause}]
+                         (let [y (if (= x e) v e)]
+                           (if-let [cost (get x->cost y)]
+                             (assoc x->cost y (min (double cost)
+                                                   (if (literal? y)
+                                                     (literal-cardinality y)
+                                                     (double (range-adjust y (clause-fan-out stats clause x))))))
+                             x->cost)))
+                       (dissoc x->cost x)
+                       (get x->clauses x))]
+          (recur (conj join-plan [x cost]) x->cost))))))
+
+(defn- cost-based-join-order [stats triple-clauses arg-vars range-vars var->frequency]
+  (mapv first (cost-based-join-plan stats triple-clauses arg-vars range-vars var->frequency)))
+
 (defn- triple-joins [triple-clauses  var->joins arg-vars range-vars stats]
   (let [var->frequency (->> (concat (map :e triple-clauses)
                                     (map :v triple-clauses)
@@ -590,37 +804,7 @@
                             (filter logic-var?)
                             (frequencies))
         triple-clauses (sort-triple-clauses stats triple-clauses)
-        literal-clauses (for [{:keys [e v] :as clause} triple-clauses
-                              :when (or (literal? e)
-                                        (literal? v))]
-                          clause)
-        literal-join-order (concat (for [{:keys [e v]} literal-clauses]
-                                     (if (literal? v)
-                                       v
-                                       e))
-                                   arg-vars
-                                   (for [{:keys [e v]} literal-clauses]
-                                     (if (literal? v)
-                                       e
-                                       v)))
-        self-join-clauses (filter (comp :self-join? meta) triple-clauses)
-        self-join-vars (map :v self-join-clauses)
-        join-order (loop [join-order (concat literal-join-order self-join-vars)
-                          clauses (->> triple-clauses
-                                       (remove (set self-join-clauses))
-                                       (remove (set literal-clauses)))]
-                     (let [join-order-set (set join-order)
-                           clause (first (or (seq (for [{:keys [e v] :as clause} clauses
-                                                        :when (or (contains? join-order-set e)
-                                                                  (contains? join-order-set v))]
-                                                    clause))
-                                             clauses))]
-                       (if-let [{:keys [e a v]} clause]
-                         (recur (->> (sort-by var->frequency [v e])
-                                     (reverse)
-                                     (concat join-order))
-                                (remove #{clause} clauses))
-                         join-order)))]
+        join-order (cost-based-join-order stats triple-clauses arg-vars range-vars var->frequency)]
     (log/debug :triple-joins-var->frequency var->frequency)
     (log/debug :triple-joins-join-order join-order)
     [(->> join-order
@@ -851,6 +1035,28 @@
                    (apply comp))])
        (into {})))
 
+;; Predicates testing a var for a literal string prefix also narrow the
+;; var's index to the values that may have that prefix. The predicate
+;; itself stays, as long strings are hashed and still need checking.
+(defn- prefix-clause-var+prefixes [pred-clauses e-vars]
+  (for [{{:keys [pred-fn args]} :pred :keys [return]} pred-clauses
+        :let [[sym prefix] args]
+        :when (and (identical? string/starts-with? pred-fn)
+                   (nil? return)
+                   (= 2 (count args))
+                   (logic-var? sym)
+                   (not (contains? e-vars sym))
+                   (string? prefix))]
+    [sym (c/string-prefix-value-buffers prefix)]))
+
+(defn- build-var-prefix-constraints [var->range-constraints prefix-clause-var+prefixes]
+  (reduce (fn [acc [var prefixes]]
+            (update acc var (fn [range-constraints]
+                              (cond-> #(idx/new-prefixes-virtual-index % prefixes)
+                                range-constraints (comp range-constraints)))))
+          var->range-constraints
+          prefix-clause-var+prefixes))
+
 (defn- build-logic-var-range-constraint-fns [encode-value-fn range-clauses var->bindings]
   (->> (for [{:keys [op sym-a sym-b] :as clause} range-clauses
              :when (and (logic-var? sym-a)
@@ -877,6 +1083,47 @@
   (->> (.get join-keys (.result-index var-binding))
        (db/decode-value index-snapshot)))
 
+(defn- decode-join-keys-column ^objects [index-snapshot ^objects column ^long size]
+  (let [values (object-array size)]
+    (loop [n 0
+           prev-k nil
+           prev-v nil]
+      (if (< n size)
+        (let [k (aget column n)
+              v (if (identical? k prev-k)
+                  prev-v
+                  (db/decode-value index-snapshot k))]
+          (aset values n v)
+          (recur (inc n) k v))
+        values))))
+
+;; NOTE: Outer join keys are shared between consecutive tuples in a
+;; batch, so each column is decoded once, reusing the previous value
+;; when the key is the same.
+(defn- join-keys-batch->results [index-snapshot var-bindings ^JoinKeysBatch batch]
+  (let [size (.size batch)
+        columns (.columns batch)
+        result-index->values (reduce
+                              (fn [acc ^VarBinding var-binding]
+                                (let [result-index (.result-index var-binding)]
+                                  (cond-> acc
+                                    (not (contains? acc result-index))
+                                    (assoc result-index (decode-join-keys-column index-snapshot
+                                                                                 (aget columns (long result-index))
+                                                                                 size)))))
+                              {}
+                              var-bindings)
+        value-columns (mapv (fn [^VarBinding var-binding]
+                              (get result-index->values (.result-index var-binding)))
+                            var-bindings)]
+    (loop [n 0
+           acc (transient [])]
+      (if (< n size)
+        (recur (inc n) (conj! acc (mapv (fn [^objects values]
+                                          (aget values n))
+                                        value-columns)))
+        (persistent! acc)))))
+
 (defn- validate-existing-vars [var->bindings clause vars]
   (doseq [var vars
           :when (not (or (pred-constraint? var)
@@ -885,14 +1132,25 @@
             (str "Clause refers to unknown variable: "
                  var " " (cio/pr-edn-str clause))))))
 
-(defn- bind-pred-result [{:keys [encode-value-fn return-type return-vars-tuple-idxs-in-join-order]} idx pred-result]
+;; Relations built for or, rules and predicates are checked against the
+;; query's memory account once built, but not held against it, as they
+;; are rebuilt per join key and only live as long as their sub-query.
+(defn- update-relation! [{::keys [^MemoryAccount memory-account]} idx tuples]
+  (idx/update-relation-virtual-index! idx tuples)
+  (when memory-account
+    (let [memory-usage (idx/relation-memory-usage idx)]
+      (.reserve memory-account memory-usage "relation")
+      (.release memory-account memory-usage)))
+  idx)
+
+(defn- bind-pred-result [{:keys [encode-value-fn return-type return-vars-tuple-idxs-in-join-order]} db idx pred-result]
   (case return-type
     :scalar
     (do (idx/update-relation-virtual-index! idx [[pred-result]])
         true)
 
     :collection
-    (do (idx/update-relation-virtual-index! idx (mapv vector pred-result))
+    (do (update-relation! db idx (mapv vector pred-result))
         (not-empty pred-result))
 
     (:tuple :relation)
@@ -901,7 +1159,7 @@
                          [pred-result])]
       (->> (for [tuple pred-result]
              (mapv #(nth tuple % nil) return-vars-tuple-idxs-in-join-order))
-           (idx/update-relation-virtual-index! idx))
+           (update-relation! db idx))
       (not-empty pred-result))
 
     pred-result))
@@ -920,7 +1178,7 @@
           (let [values (if (and (empty? vs) not-found?)
                            [not-found]
                            (mapv #(db/decode-value index-snapshot %) vs))]
-            (bind-pred-result pred-ctx (get idx-id->idx idx-id) (not-empty values))))))))
+            (bind-pred-result pred-ctx db (get idx-id->idx idx-id) (not-empty values))))))))
 
 (defmethod pred-constraint 'q [{:keys [return] :as clause} {:keys [encode-value-fn idx-id arg-bindings rule-name->rules]
                                                             :as pred-ctx}]
@@ -935,7 +1193,7 @@
             query (cond-> (assoc query :args args)
                     (seq parent-rules) (update :rules (comp vec concat) parent-rules))]
         (with-open [pred-result (.openQuery ^ICruxDatasource db query)]
-          (bind-pred-result pred-ctx (get idx-id->idx idx-id) (iterator-seq pred-result)))))))
+          (bind-pred-result pred-ctx db (get idx-id->idx idx-id) (iterator-seq pred-result)))))))
 
 (defn- built-in-unification-pred [unifier-fn {:keys [encode-value-fn arg-bindings]}]
   (let [arg-bindings (vec (for [arg-binding (rest arg-bindings)]
@@ -960,14 +1218,95 @@
                                      {:keys [encode-value-fn idx-id arg-bindings]
                                       :as pred-ctx}]
   (fn pred-constraint [index-snapshot db idx-id->idx join-keys]
-    (let [[pred-fn & args] (for [arg-binding arg-bindings]
-                             (if (instance? VarBinding arg-binding)
-                               (bound-result-for-var index-snapshot arg-binding join-keys)
-                               arg-binding))
+    (let [[pred-fn & args] (mapv (fn [arg-binding]
+                                   (if (instance? VarBinding arg-binding)
+                                     (bound-result-for-var index-snapshot arg-binding join-keys)
+                                     arg-binding))
+                                 arg-bindings)
           pred-result (apply pred-fn args)]
-      (bind-pred-result pred-ctx (get idx-id->idx idx-id) pred-result))))
+      (bind-pred-result pred-ctx db (get idx-id->idx idx-id) pred-result))))
+
+;; Predicate constraints can be compiled into classes of their own, via
+;; eval, once per compiled query. Arguments are read from the join keys
+;; straight into locals and the predicate is invoked at its fixed
+;; arity, while == and != between two arguments compare the encoded
+;; buffers without decoding them. Constants are passed in and closed
+;; over, as arbitrary values can't be embedded in the generated code.
+
+(defn- eval-constraint-fn [consts body-fn]
+  (let [const-syms (vec (repeatedly (count consts) #(gensym "const")))
+        syms {:consts const-syms
+              :index-snapshot (gensym "index-snapshot")
+              :db (gensym "db")
+              :idx-id->idx (gensym "idx-id->idx")
+              :join-keys (with-meta (gensym "join-keys") {:tag `List})}]
+    ((eval `(fn [[~@const-syms]]
+              (fn ~'compiled-constraint [~(:index-snapshot syms) ~(:db syms) ~(:idx-id->idx syms) ~(:join-keys syms)]
+                ~(body-fn syms))))
+     (vec consts))))
+
+(defn- compile-default-pred-constraint [{:keys [idx-id arg-bindings] :as pred-ctx}]
+  (let [bind-fn (fn [idx-id->idx db pred-result]
+                  (bind-pred-result pred-ctx db (get idx-id->idx idx-id) pred-result))
+        consts (vec (remove #(instance? VarBinding %) arg-bindings))]
+    (eval-constraint-fn
+     (cons bind-fn consts)
+     (fn [{[bind-sym & const-syms] :consts :keys [index-snapshot db idx-id->idx join-keys]}]
+       (let [arg-syms (vec (repeatedly (count arg-bindings) #(gensym "arg")))]
+         `(let [~@(loop [[arg-binding & arg-bindings] arg-bindings
+                         [arg-sym & arg-syms] arg-syms
+                         const-syms const-syms
+                         acc []]
+                    (cond
+                      (nil? arg-sym) acc
+
+                      (instance? VarBinding arg-binding)
+                      (recur arg-bindings arg-syms const-syms
+                             (conj acc arg-sym `(db/decode-value ~index-snapshot (.get ~join-keys ~(.result-index ^VarBinding arg-binding)))))
+
+                      :else
+                      (recur arg-bindings arg-syms (rest const-syms)
+                             (conj acc arg-sym (first const-syms)))))]
+            (~bind-sym ~idx-id->idx ~db (~@arg-syms))))))))
+
+(defn- compile-unification-pred-constraint [equal? {:keys [encode-value-fn arg-bindings]}]
+  (let [[a b :as arg-bindings] (rest arg-bindings)]
+    (when (and (= 2 (count arg-bindings))
+               (some #(instance? VarBinding %) arg-bindings))
+      (let [[a b] (if (instance? VarBinding a) [a b] [b a])
+            b (if (instance? VarBinding b)
+                b
+                (->> (map encode-value-fn (c/vectorize-value b))
+                     (into (sorted-set-by mem/buffer-comparator))))]
+        (eval-constraint-fn
+         [b]
+         (fn [{[b-sym] :consts :keys [join-keys]}]
+           (let [a-sym (with-meta (gensym "a") {:tag `DirectBuffer})
+                 b-value-sym (with-meta (gensym "b") {:tag `DirectBuffer})
+                 test (cond
+                        (instance? VarBinding b)
+                        `(let [~b-value-sym (.get ~join-keys ~(.result-index ^VarBinding b))]
+                           (ByteUtils/equalBuffers ~a-sym ~b-value-sym))
+
+                        (= 1 (count b))
+                        `(let [~b-value-sym (first ~b-sym)]
+                           (ByteUtils/equalBuffers ~a-sym ~b-value-sym))
+
+                        :else
+                        `(.contains ~(with-meta b-sym {:tag `Set}) ~a-sym))]
+             `(let [~a-sym (.get ~join-keys ~(.result-index ^VarBinding a))]
+                ~(if equal?
+                   test
+                   `(not ~test))))))))))
+
+(defn- compile-pred-constraint [{{:keys [pred-fn]} :pred :as clause} pred-ctx]
+  (cond
+    (= '== pred-fn) (compile-unification-pred-constraint true pred-ctx)
+    (= '!= pred-fn) (compile-unification-pred-constraint false pred-ctx)
+    (pred-constraint? pred-fn) nil
+    :else (compile-default-pred-constraint pred-ctx)))
 
-(defn- build-pred-constraints [rule-name->rules encode-value-fn pred-clause+idx-ids var->bindings vars-in-join-order]
+(defn- build-pred-constraints [rule-name->rules encode-value-fn compile-predicates? pred-clause+idx-ids var->bindings vars-in-join-order]
   (for [[{:keys [pred return] :as clause} idx-id] pred-clause+idx-ids
         :let [{:keys [pred-fn args]} pred
               pred-vars (filter logic-var? (cons pred-fn args))
@@ -998,7 +1337,9 @@
         (s/assert ::pred-args (cond-> [pred-fn (vec args)]
                                 return (conj (second return))))
         {:join-depth pred-join-depth
-         :constraint-fn (pred-constraint clause pred-ctx)})))
+         :constraint-fn (or (when compile-predicates?
+                              (compile-pred-constraint clause pred-ctx))
+                            (pred-constraint clause pred-ctx))})))
 
 ;; TODO: For or (but not or-join) it might be possible to embed the
 ;; entire or expression into the parent join via either OrVirtualIndex
@@ -1022,68 +1363,438 @@
 
 (def ^:private ^:dynamic *recursion-table* {})
 
+;; Tabled rules
+
+;; Linear self-recursive rules, where each branch calls the rule at most
+;; once, at the top level of its body, are evaluated bottom-up by
+;; semi-naive iteration over a table shared by the query. The table
+;; holds the answers of the rule per seed, the values of its bound
+;; args. Each seed evaluates the branches once with the recursive call
+;; removed, yielding the answers of the base branches and, for the
+;; recursive branches, the seeds of the recursive call along with the
+;; rows joining its answers. New answers are then only propagated to the
+;; seeds depending on them, until no seed gains new answers. The seeds
+;; and answers of a table are held against the query's memory account,
+;; the query failing once they exceed it.
+
+(defn- rule-call? [rule-name clause]
+  (and (vector? clause)
+       (= 2 (count clause))
+       (= :rule (first clause))
+       (= rule-name (:name (second clause)))))
+
+(defn- rule-deps [rule-name->rules rule-name]
+  (set (for [{:keys [body]} (get rule-name->rules rule-name)
+             clause (tree-seq coll? seq body)
+             :when (and (vector? clause)
+                        (= 2 (count clause))
+                        (= :rule (first clause))
+                        (map? (second clause)))]
+         (:name (second clause)))))
+
+(defn- mutually-recursive-rule? [rule-name->rules rule-name]
+  (loop [[dep & deps] (seq (disj (rule-deps rule-name->rules rule-name) rule-name))
+         seen #{}]
+    (cond
+      (nil? dep) false
+      (contains? seen dep) (recur deps seen)
+      :else (let [dep-deps (rule-deps rule-name->rules dep)]
+              (if (contains? dep-deps rule-name)
+                true
+                (recur (concat deps dep-deps) (conj seen dep)))))))
+
+(defn- linear-recursive-rule? [rule-name->rules rule-name]
+  (let [bodies (map :body (get rule-name->rules rule-name))
+        calls (for [body bodies]
+                [(count (filter (partial rule-call? rule-name) body))
+                 (count (filter (partial rule-call? rule-name) (tree-seq coll? seq body)))])]
+    (and (some #(= [1 1] %) calls)
+         (every? (fn [[top-level-calls calls]]
+                   (and (<= (long top-level-calls) 1) (= top-level-calls calls)))
+                 calls)
+         (not (mutually-recursive-rule? rule-name->rules rule-name)))))
+
+(defn- clauses-vars [clauses]
+  (->> (collect-vars (normalize-clauses clauses))
+       (vals)
+       (reduce into #{})
+       (remove blank-var?)
+       (set)))
+
+;; Plans a rule for the given bound arg positions, nil when a branch
+;; can't bind the bound args of its recursive call or its free args.
+(defn- tabled-rule-plan [rule-name->rules rule-name bound-positions]
+  (let [rules (get rule-name->rules rule-name)
+        arity (let [{:keys [bound-args free-args]} (:args (:head (first rules)))]
+                (+ (count bound-args) (count free-args)))
+        free-positions (vec (remove (set bound-positions) (range arity)))
+        branches (for [{:keys [head body]} rules
+                       :let [{:keys [bound-args free-args]} (:args head)
+                             head-args (vec (concat bound-args free-args))
+                             head-bound-vars (mapv head-args bound-positions)
+                             head-free-vars (mapv head-args free-positions)
+                             [[_ call]] (filter (partial rule-call? rule-name) body)
+                             rest-clauses (vec (remove (partial rule-call? rule-name) body))
+                             rest-vars (clauses-vars rest-clauses)
+                             call-args (vec (:args call))
+                             call-free-vars (when call
+                                              (set (filter logic-var? (map call-args free-positions))))
+                             bindable? (fn [x]
+                                         (or (not (logic-var? x))
+                                             (contains? (set head-bound-vars) x)
+                                             (contains? rest-vars x)))
+                             row-vars (->> (concat head-free-vars (filter logic-var? call-args))
+                                           (filter rest-vars)
+                                           (remove (set head-bound-vars))
+                                           (distinct)
+                                           (vec))]]
+                   (when (and (or (nil? call)
+                                  (every? bindable? (map call-args bound-positions)))
+                              (every? #(or (contains? rest-vars %)
+                                           (contains? call-free-vars %))
+                                      head-free-vars))
+                     {:rest-clauses rest-clauses
+                      :arg-vars (vec (filter rest-vars head-bound-vars))
+                      :head-bound-vars head-bound-vars
+                      :head-free-vars head-free-vars
+                      :row-vars row-vars
+                      :call-args (when call call-args)
+                      :join-positions (when call
+                                        (vec (for [position free-positions
+                                                   :let [arg (nth call-args position)]
+                                                   :when (or (not (logic-var? arg))
+                                                             (contains? (set head-bound-vars) arg)
+                                                             (some #{arg} row-vars))]
+                                               position)))}))]
+    (when (every? some? branches)
+      {:bound-positions bound-positions
+       :free-positions free-positions
+       :branches (vec branches)})))
+
+(defn- arg-value [row arg]
+  (if (logic-var? arg)
+    (get row arg)
+    arg))
+
+(defn- tabled-rule-branch-rows [db rule-name->rules stats {:keys [rest-clauses arg-vars head-bound-vars row-vars]} seed]
+  (let [head-bound-row (zipmap head-bound-vars seed)]
+    (if (not= seed (mapv head-bound-row head-bound-vars))
+      []
+      (if (empty? rest-clauses)
+        [head-bound-row]
+        (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+          (let [db (assoc db :index-snapshot index-snapshot)
+                args (when (seq arg-vars)
+                       [(select-keys head-bound-row arg-vars)])
+                {:keys [n-ary-join var->bindings]} (build-sub-query index-snapshot db rest-clauses args rule-name->rules stats)]
+            (->> (for [join-keys (idx/layered-idx->seq n-ary-join)]
+                   (into head-bound-row
+                         (for [var row-vars]
+                           [var (bound-result-for-var index-snapshot (get var->bindings var) join-keys)])))
+                 (vec))))))))
+
+(defn- join-tabled-rule-answer [{:keys [call-args head-free-vars]} free-positions row answer]
+  (when-let [row (reduce (fn [row [position v]]
+                           (let [arg (nth call-args position)]
+                             (cond
+                               (not (logic-var? arg)) (if (= arg v) row (reduced nil))
+                               (blank-var? arg) row
+                               (contains? row arg) (if (= (get row arg) v) row (reduced nil))
+                               :else (assoc row arg v))))
+                         row
+                         (map vector free-positions answer))]
+    (mapv row head-free-vars)))
+
+(def ^:private ^:const rule-table-entry-bytes 64)
+
+(defn- new-rule-table []
+  {:answers (HashMap.)
+   :dependents (HashMap.)
+   :complete (HashSet.)
+   :usage (long-array 1)
+   :reserved (long-array 1)})
+
+(defn- reserve-rule-table-usage! [{::keys [^MemoryAccount memory-account]} {:keys [^longs usage ^longs reserved]} values]
+  (when memory-account
+    (aset usage 0 (+ (aget usage 0) (* rule-table-entry-bytes (inc (count values)))))
+    (when-not (reserve-memory-usage! memory-account reserved (aget usage 0))
+      (.reserve memory-account (- (aget usage 0) (aget reserved 0)) "tabled rule")
+      (aset reserved 0 (aget usage 0)))))
+
+(defn- tabled-rule-answers [db rule-name->rules stats {:keys [bound-positions free-positions branches]} table seed]
+  (let [{:keys [^Map answers ^Map dependents ^Set complete]} table]
+    (locking table
+      (when-not (.contains complete seed)
+        (binding [*recursion-table* {}]
+          (let [new-seeds (ArrayList.)
+                deltas (ArrayDeque.)
+                add-answer! (fn [seed answer]
+                              (when (.add ^Set (.get answers seed) answer)
+                                (reserve-rule-table-usage! db table answer)
+                                (.add deltas [seed answer])))
+                pending (doto (ArrayDeque.)
+                          (.add seed))]
+            (reserve-rule-table-usage! db table seed)
+            (.put answers seed (LinkedHashSet.))
+            (while (not (.isEmpty pending))
+              (let [seed (.poll pending)]
+                (.add new-seeds seed)
+                (doseq [{:keys [call-args join-positions head-free-vars] :as branch} branches
+                        row (tabled-rule-branch-rows db rule-name->rules stats branch seed)]
+                  (if-not call-args
+                    (add-answer! seed (mapv row head-free-vars))
+                    (let [call-seed (mapv #(arg-value row (nth call-args %)) bound-positions)
+                          join-key (mapv #(arg-value row (nth call-args %)) join-positions)]
+                      (when-not (.containsKey answers call-seed)
+                        (reserve-rule-table-usage! db table call-seed)
+                        (.put answers call-seed (LinkedHashSet.))
+                        (.add pending call-seed))
+                      (if (.contains complete call-seed)
+                        (doseq [answer (.get answers call-seed)
+                                :let [answer (join-tabled-rule-answer branch free-positions row answer)]
+                                :when answer]
+                          (add-answer! seed answer))
+                        (-> ^Map (.computeIfAbsent dependents call-seed (reify Function
+                                                                          (apply [_ _]
+                                                                            (HashMap.))))
+                            ^Map (.computeIfAbsent [seed branch] (reify Function
+                                                                   (apply [_ _]
+                                                                     (HashMap.))))
+                            ^List (.computeIfAbsent join-key (reify Function
+                                                              (apply [_ _]
+                                                                (ArrayList.))))
+                            (.add row))))))))
+            (while (not (.isEmpty deltas))
+              (let [[call-seed answer] (.poll deltas)]
+                (doseq [[[seed {:keys [join-positions] :as branch}] ^Map join-key->rows] (.get dependents call-seed)
+                        :let [join-key (mapv (fn [position]
+                                               (nth answer (.indexOf ^List free-positions position)))
+                                             join-positions)]
+                        row (.get join-key->rows join-key)
+                        :let [answer (join-tabled-rule-answer branch free-positions row answer)]
+                        :when answer]
+                  (add-answer! seed answer))))
+            (doseq [seed new-seeds]
+              (.add complete seed)
+              (.remove dependents seed)))))
+      (vec (.get answers seed)))))
+
+;; Returns a fn of the values of the bound vars of a call to a tabled
+;; rule, returning the values of its free vars, or false when the rule
+;; has no answers.
+(defn- tabled-rule-call [rule-name->rules stats {:keys [name args] :as call} bound-vars free-vars]
+  (let [args (vec args)
+        bound-vars (set bound-vars)
+        bound-positions (vec (for [[position arg] (map-indexed vector args)
+                                   :when (or (not (logic-var? arg))
+                                             (contains? bound-vars arg))]
+                               position))]
+    (when-let [{:keys [free-positions] :as plan} (tabled-rule-plan rule-name->rules name bound-positions)]
+      (fn [{::keys [sub-query-cache] :as db} var->value]
+        (let [table (if-let [^Map tables (:tables sub-query-cache)]
+                      (locking tables
+                        (or (.get tables [name bound-positions])
+                            (doto (new-rule-table)
+                              (->> (.put tables [name bound-positions])))))
+                      (new-rule-table))
+              seed (mapv #(arg-value var->value (nth args %)) bound-positions)
+              results (->> (for [answer (tabled-rule-answers db rule-name->rules stats plan table seed)
+                                 :let [row (reduce (fn [row [position v]]
+                                                     (let [arg (nth args position)]
+                                                       (cond
+                                                         (not (logic-var? arg)) (if (= arg v) row (reduced nil))
+                                                         (blank-var? arg) row
+                                                         (contains? row arg) (if (= (get row arg) v) row (reduced nil))
+                                                         :else (assoc row arg v))))
+                                                   var->value
+                                                   (map vector free-positions answer))]
+                                 :when row]
+                             (mapv row free-vars))
+                           (distinct)
+                           (vec))]
+          (if (seq results)
+            results
+            false))))))
+
+;; Or and not sub-queries are memoized per query by the values of their
+;; bound vars, outside of rule recursion where results may be partial.
+;; Once a clause has been evaluated for more distinct bindings than the
+;; rows estimated for its body, it's instead evaluated once without
+;; bindings and its results grouped by the values of its bound vars,
+;; turning it into a hash semi- or anti-join. This requires every bound
+;; var to be bound by a triple clause of the body. The rows are
+;; estimated from the body's join plan, as the product of the estimated
+;; rows of each var per row of the vars before it, and the clause stays
+;; correlated when they wouldn't fit in the query's memory account. As
+;; the estimate may still be far off, the hash join's size is also held
+;; against the account while it's built.
+
+(def ^:private ^:const sub-query-cache-size 10240)
+(def ^:private ^:const sub-query-hash-join-max-rows 100000)
+(def ^:private ^:const sub-query-hash-join-entry-bytes 64)
+
+(defn- new-sub-query-cache []
+  {:results (lru/new-cache sub-query-cache-size)
+   :evaluations (ConcurrentHashMap.)
+   :hash-joins (ConcurrentHashMap.)
+   :tables (HashMap.)})
+
+(defn- sub-query-hash-join-rows [stats bound-vars where]
+  (let [{triple-clauses :triple rule-clauses :rule} (normalize-clauses where)]
+    (when (and (empty? rule-clauses)
+               (every? (fn [var]
+                         (some (fn [{:keys [e v]}]
+                                 (or (= var e) (= var v)))
+                               triple-clauses))
+                       bound-vars))
+      (let [rows (->> (cost-based-join-plan stats triple-clauses nil nil {})
+                      (map second)
+                      (reduce * 1.0)
+                      (double))]
+        (when (<= rows (double sub-query-hash-join-max-rows))
+          rows)))))
+
+(defn- sub-query-hash-join-fits? [{::keys [^MemoryAccount memory-account]} ^double rows bound-values]
+  (or (nil? memory-account)
+      (<= (* rows sub-query-hash-join-entry-bytes (inc (count bound-values)))
+          (double (.available memory-account)))))
+
+(defn- build-sub-query-hash-join
+  "Reduces the [bound-values result] rows into a hash join with rf,
+  returning nil once the query's memory account can't cover them."
+  [{::keys [^MemoryAccount memory-account]} rf rows]
+  (let [reserved (long-array 1)
+        usage (long-array 1)
+        hash-join (reduce (fn [acc [bound-values result :as row]]
+                            (aset usage 0 (+ (aget usage 0)
+                                             (* sub-query-hash-join-entry-bytes
+                                                (+ 1 (count bound-values) (if (vector? result) (count result) 0)))))
+                            (if (reserve-memory-usage! memory-account reserved (aget usage 0))
+                              (rf acc row)
+                              (reduced ::over-budget)))
+                          {}
+                          rows)]
+    (if (= ::over-budget hash-join)
+      (do (some-> memory-account (.release (aget reserved 0)))
+          nil)
+      hash-join)))
+
+(defn- memoized-sub-query-result [{::keys [sub-query-cache] :as db} k bound-values hash-join-rows correlated-fn hash-join-fn]
+  (if (or (nil? sub-query-cache) (not-empty *recursion-table*))
+    (correlated-fn)
+    (let [{:keys [results ^Map evaluations ^Map hash-joins]} sub-query-cache
+          hash-join (.get hash-joins k)]
+      (if (and hash-join (not= ::correlated hash-join))
+        (get hash-join bound-values)
+        (lru/compute-if-absent
+         results
+         [k bound-values]
+         identity
+         (fn [_]
+           (let [evaluations (.incrementAndGet ^AtomicLong (.computeIfAbsent evaluations k (reify Function
+                                                                                             (apply [_ _]
+                                                                                               (AtomicLong.)))))]
+             (if (and hash-join-rows (nil? hash-join) (> evaluations (double hash-join-rows)))
+               (let [hash-join (or (when (sub-query-hash-join-fits? db hash-join-rows bound-values)
+                                     (hash-join-fn))
+                                   ::correlated)
+                     hash-join (or (.putIfAbsent hash-joins k hash-join) hash-join)]
+                 (if (= ::correlated hash-join)
+                   (correlated-fn)
+                   (get hash-join bound-values false)))
+               (correlated-fn)))))))))
+
 ;; TODO: This tabling mechanism attempts at avoiding infinite
 ;; recursion, but does not actually cache anything. Short-circuits
 ;; identical sub trees. Passes tests, unsure if this really works in
 ;; the general case. Depends on the eager expansion of rules for some
 ;; cases to pass. One alternative is maybe to try to cache the
-;; sequence and reuse it, somehow detecting if it loops.
+;; sequence and reuse it, somehow detecting if it loops. It's now only
+;; the fallback, via *recursion-table*, for rule calls that can't be
+;; tabled, see Tabled rules above.
 (defn- build-or-constraints
   [rule-name->rules or-clause+idx-id+or-branches var->bindings vars-in-join-order stats]
   (for [[clause idx-id [{:keys [free-vars bound-vars]} :as or-branches]] or-clause+idx-id+or-branches
         :let [or-join-depth (calculate-constraint-join-depth var->bindings bound-vars)
               free-vars-in-join-order (filter (set free-vars) vars-in-join-order)
               has-free-vars? (boolean (seq free-vars))
-              bound-var-bindings (map var->bindings bound-vars)
-              {:keys [rule-name]} (meta clause)]]
+              bound-vars (vec bound-vars)
+              bound-var-bindings (mapv var->bindings bound-vars)
+              {:keys [rule-name tabled-rule]} (meta clause)
+              tabled-rule-call (when tabled-rule
+                                 (tabled-rule-call rule-name->rules stats tabled-rule bound-vars free-vars-in-join-order))
+              hash-join-rows (when-not rule-name
+                               (let [rows (keep #(sub-query-hash-join-rows stats bound-vars (:where %)) or-branches)]
+                                 (when (= (count rows) (count or-branches))
+                                   (reduce + rows))))
+              branch-free-results (fn [index-snapshot sub-var->bindings join-keys]
+                                    (if has-free-vars?
+                                      (vec (for [var free-vars-in-join-order]
+                                             (bound-result-for-var index-snapshot (get sub-var->bindings var) join-keys)))
+                                      []))
+              or-hash-join (fn [db]
+                             (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+                               (let [db (assoc db :index-snapshot index-snapshot)]
+                                 (some->> (for [{:keys [where]} or-branches
+                                                :let [{:keys [n-ary-join var->bindings]} (build-sub-query index-snapshot db where nil rule-name->rules stats)]
+                                                join-keys (idx/layered-idx->seq n-ary-join)]
+                                            [(mapv #(bound-result-for-var index-snapshot (get var->bindings %) join-keys) bound-vars)
+                                             (branch-free-results index-snapshot var->bindings join-keys)])
+                                          (build-sub-query-hash-join db (fn [acc [bound-values free-result]]
+                                                                          (update acc bound-values (fnil conj #{}) free-result)))
+                                          (reduce-kv (fn [acc bound-values free-results]
+                                                       (assoc acc bound-values (vec free-results)))
+                                                     {})))))]]
     (do (validate-existing-vars var->bindings clause bound-vars)
         {:join-depth or-join-depth
          :constraint-fn
          (fn or-constraint [index-snapshot db idx-id->idx join-keys]
-           (let [args (when (seq bound-vars)
-                        [(->> (for [var-binding bound-var-bindings]
-                                (bound-result-for-var index-snapshot var-binding join-keys))
-                              (zipmap bound-vars))])
-                 branch-results (for [[branch-index {:keys [where
-                                                            single-e-var-triple?] :as or-branch}] (map-indexed vector or-branches)
-                                      :let [cache-key (when rule-name
-                                                        [rule-name branch-index (count free-vars) (set (mapv vals args))])
-                                            cached-result (when cache-key
-                                                            (get *recursion-table* cache-key))]]
-                                  (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
-                                    (let [db (assoc db :index-snapshot index-snapshot)]
-                                      (cond
-                                        cached-result
-                                        cached-result
-
-                                        single-e-var-triple?
-                                        (let [[[_ clause]] where]
-                                          (or-single-e-var-triple-fast-path
-                                           index-snapshot
-                                           db
-                                           clause
-                                           args))
-
-                                        :else
-                                        (binding [*recursion-table* (if cache-key
-                                                                      (assoc *recursion-table* cache-key [])
-                                                                      *recursion-table*)]
-                                          (let [{:keys [n-ary-join
-                                                        var->bindings]} (build-sub-query index-snapshot db where args rule-name->rules stats)
-                                                free-vars-in-join-order-bindings (map var->bindings free-vars-in-join-order)]
-                                            (when-let [idx-seq (seq (idx/layered-idx->seq n-ary-join))]
-                                              (if has-free-vars?
-                                                (vec (for [join-keys idx-seq]
-                                                       (vec (for [var-binding free-vars-in-join-order-bindings]
-                                                              (bound-result-for-var index-snapshot var-binding join-keys)))))
-                                                []))))))))]
-             (when (seq (remove nil? branch-results))
+           (let [bound-values (mapv #(bound-result-for-var index-snapshot % join-keys) bound-var-bindings)
+                 args (when (seq bound-vars)
+                        [(zipmap bound-vars bound-values)])
+                 correlated-result (if tabled-rule-call
+                                     #(tabled-rule-call db (zipmap bound-vars bound-values))
+                                     (fn []
+                                       (let [branch-results (for [[branch-index {:keys [where
+                                                                                      single-e-var-triple?] :as or-branch}] (map-indexed vector or-branches)
+                                                                :let [cache-key (when rule-name
+                                                                                  [rule-name branch-index (count free-vars) (set (mapv vals args))])
+                                                                      cached-result (when cache-key
+                                                                                      (get *recursion-table* cache-key))]]
+                                                            (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+                                                              (let [db (assoc db :index-snapshot index-snapshot)]
+                                                                (cond
+                                                                  cached-result
+                                                                  cached-result
+
+                                                                  single-e-var-triple?
+                                                                  (let [[[_ clause]] where]
+                                                                    (or-single-e-var-triple-fast-path
+                                                                     index-snapshot
+                                                                     db
+                                                                     clause
+                                                                     args))
+
+                                                                  :else
+                                                                  (binding [*recursion-table* (if cache-key
+                                                                                                (assoc *recursion-table* cache-key [])
+                                                                                                *recursion-table*)]
+                                                                    (let [{:keys [n-ary-join
+                                                                                  var->bindings]} (build-sub-query index-snapshot db where args rule-name->rules stats)]
+                                                                      (when-let [idx-seq (seq (idx/layered-idx->seq n-ary-join))]
+                                                                        (vec (for [join-keys idx-seq]
+                                                                               (branch-free-results index-snapshot var->bindings join-keys))))))))))]
+                                       (if (seq (remove nil? branch-results))
+                                         (->> branch-results
+                                              (apply concat)
+                                              (distinct)
+                                              (vec))
+                                         false))))
+                 free-results (memoized-sub-query-result db [::or clause bound-vars] bound-values hash-join-rows
+                                                         correlated-result #(or-hash-join db))]
+             (when free-results
                (when has-free-vars?
-                 (let [free-results (->> branch-results
-                                         (apply concat)
-                                         (distinct)
-                                         (vec))]
-                   (idx/update-relation-virtual-index! (get idx-id->idx idx-id) free-results)))
+                 (update-relation! db (get idx-id->idx idx-id) free-results))
                true)))})))
 
 (defn- build-not-constraints [rule-name->rules not-type not-clauses var->bindings stats]
@@ -1093,21 +1804,33 @@
                                             not-clause]
                                       :not-join [(:args not-clause)
                                                  (:body not-clause)])
-              not-vars (remove blank-var? not-vars)
-              not-var-bindings (map var->bindings not-vars)
-              not-join-depth (calculate-constraint-join-depth var->bindings not-vars)]]
+              not-vars (vec (remove blank-var? not-vars))
+              not-var-bindings (mapv var->bindings not-vars)
+              not-join-depth (calculate-constraint-join-depth var->bindings not-vars)
+              hash-join-rows (sub-query-hash-join-rows stats not-vars not-clause)
+              not-hash-join (fn [db]
+                              (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+                                (let [db (assoc db :index-snapshot index-snapshot)
+                                      {:keys [n-ary-join var->bindings]} (build-sub-query index-snapshot db not-clause nil rule-name->rules stats)]
+                                  (->> (for [join-keys (idx/layered-idx->seq n-ary-join)]
+                                         [(mapv #(bound-result-for-var index-snapshot (get var->bindings %) join-keys) not-vars)
+                                          true])
+                                       (build-sub-query-hash-join db (fn [acc [bound-values]]
+                                                                       (assoc acc bound-values true)))))))]]
     (do (validate-existing-vars var->bindings not-clause not-vars)
         {:join-depth not-join-depth
          :constraint-fn
          (fn not-constraint [index-snapshot db idx-id->idx join-keys]
-           (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
-             (let [db (assoc db :index-snapshot index-snapshot)
-                   args (when (seq not-vars)
-                          [(->> (for [var-binding not-var-bindings]
-                                  (bound-result-for-var index-snapshot var-binding join-keys))
-                                (zipmap not-vars))])
-                   {:keys [n-ary-join]} (build-sub-query index-snapshot db not-clause args rule-name->rules stats)]
-               (empty? (idx/layered-idx->seq n-ary-join)))))})))
+           (let [bound-values (mapv #(bound-result-for-var index-snapshot % join-keys) not-var-bindings)
+                 correlated-result (fn []
+                                     (with-open [index-snapshot ^Closeable (open-index-snapshot db)]
+                                       (let [db (assoc db :index-snapshot index-snapshot)
+                                             args (when (seq not-vars)
+                                                    [(zipmap not-vars bound-values)])
+                                             {:keys [n-ary-join]} (build-sub-query index-snapshot db not-clause args rule-name->rules stats)]
+                                         (boolean (seq (idx/layered-idx->seq n-ary-join))))))]
+             (not (memoized-sub-query-result db [::not not-clause not-vars] bound-values hash-join-rows
+                                             correlated-result #(not-hash-join db)))))})))
 
 (defn- constrain-join-result-by-constraints [index-snapshot db idx-id->idx depth->constraints join-keys]
   (->> (get depth->constraints (count join-keys))
@@ -1207,7 +1930,8 @@
                                    :free-args (vec (filter logic-var? free-args))}
                             :body (vec (for [expanded-rule expanded-rules]
                                          [:and expanded-rule]))}
-                           {:rule-name rule-name})]]))))))
+                           (cond-> {:rule-name rule-name}
+                             (linear-recursive-rule? rule-name->rules rule-name) (assoc :tabled-rule clause)))]]))))))
            [sub-clause]))
        (reduce into [])))
 
@@ -1270,7 +1994,7 @@
    depth->join-depth
    constraints))
 
-(defn- compile-sub-query [encode-value-fn where arg-vars rule-name->rules stats]
+(defn- compile-sub-query [encode-value-fn compile-predicates? where arg-vars rule-name->rules stats]
   (let [where (expand-rules where rule-name->rules {})
         {triple-clauses :triple
          range-clauses :range
@@ -1285,6 +2009,8 @@
                 range-vars
                 pred-vars
                 pred-return-vars]} (collect-vars type->clauses)
+        prefix-clause-var+prefixes (prefix-clause-var+prefixes pred-clauses e-vars)
+        range-vars (into range-vars (map first) prefix-clause-var+prefixes)
         var->joins {}
         [triple-join-deps var->joins] (triple-joins triple-clauses
                                                     var->joins
@@ -1331,11 +2057,12 @@
                                                  var->values-result-index
                                                  join-depth
                                                  (keys var->attr)))
-        var->range-constraints (build-var-range-constraints encode-value-fn range-clauses var->bindings)
+        var->range-constraints (-> (build-var-range-constraints encode-value-fn range-clauses var->bindings)
+                                   (build-var-prefix-constraints prefix-clause-var+prefixes))
         var->logic-var-range-constraint-fns (build-logic-var-range-constraint-fns encode-value-fn range-clauses var->bindings)
         not-constraints (build-not-constraints rule-name->rules :not not-clauses var->bindings stats)
         not-join-constraints (build-not-constraints rule-name->rules :not-join not-join-clauses var->bindings stats)
-        pred-constraints (build-pred-constraints rule-name->rules encode-value-fn pred-clause+idx-ids var->bindings vars-in-join-order)
+        pred-constraints (build-pred-constraints rule-name->rules encode-value-fn compile-predicates? pred-clause+idx-ids var->bindings vars-in-join-order)
         or-constraints (build-or-constraints rule-name->rules or-clause+idx-id+or-branches
                                              var->bindings vars-in-join-order stats)
         depth->constraints (->> (concat pred-constraints
@@ -1382,69 +2109,90 @@
                                                     logic-var+range-constraint)))))
     compiled-query))
 
-(defn- build-sub-query [index-snapshot {:keys [query-cache] :as db} where args rule-name->rules stats]
-  ;; NOTE: this implies argument sets with different vars get compiled
-  ;; differently.
-  (let [arg-vars (arg-vars args)
-        encode-value-fn (partial db/encode-value index-snapshot)
-        {:keys [depth->constraints
-                vars-in-join-order
-                var->range-constraints
-                var->logic-var-range-constraint-fns
-                var->joins
-                var->bindings
-                arg-vars-in-join-order
-                args-idx-id
-                attr-stats]
-         :as compiled-query} (-> (lru/compute-if-absent
-                                  query-cache
-                                  [where arg-vars rule-name->rules]
-                                  identity
-                                  (fn [_]
-                                    (compile-sub-query encode-value-fn where arg-vars rule-name->rules stats)))
-                                 (add-logic-var-constraints))
-        idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
-        unary-join-indexes (for [v vars-in-join-order]
-                             (-> (idx/new-unary-join-virtual-index
-                                  (vec (for [{:keys [id idx-fn] :as join} (get var->joins v)]
-                                         (or (get idx-id->idx id)
-                                             (idx-fn db index-snapshot compiled-query)))))
-                                 (idx/wrap-with-range-constraints (get var->range-constraints v))))
-        constrain-result-fn (fn [join-keys]
-                              (constrain-join-result-by-constraints index-snapshot db idx-id->idx depth->constraints join-keys))]
-    (when (and (seq args) args-idx-id)
-      (binding [nippy/*freeze-fallback* :write-unfreezable]
-        (idx/update-relation-virtual-index!
-         (get idx-id->idx args-idx-id)
-         (vec (for [arg (distinct args)]
-                (mapv #(arg-for-var arg %) arg-vars-in-join-order))))))
-    (log/debug :where (cio/pr-edn-str where))
-    (log/debug :vars-in-join-order vars-in-join-order)
-    (log/debug :attr-stats (cio/pr-edn-str attr-stats))
-    (log/debug :var->bindings (cio/pr-edn-str var->bindings))
-    {:n-ary-join (when (constrain-result-fn [])
-                   (-> (idx/new-n-ary-join-layered-virtual-index unary-join-indexes)
-                       (idx/new-n-ary-constraining-layered-virtual-index constrain-result-fn)))
-     :var->bindings var->bindings}))
+(defn- build-sub-query
+  ([index-snapshot db where args rule-name->rules stats]
+   (build-sub-query index-snapshot db where args rule-name->rules stats nil))
+  ([index-snapshot {:keys [query-cache compile-predicates?] :as db} where args rule-name->rules stats first-var-range-constraints]
+   ;; NOTE: this implies argument sets with different vars get compiled
+   ;; differently.
+   (let [arg-vars (arg-vars args)
+         encode-value-fn (partial db/encode-value index-snapshot)
+         {:keys [depth->constraints
+                 vars-in-join-order
+                 var->range-constraints
+                 var->logic-var-range-constraint-fns
+                 var->joins
+                 var->bindings
+                 arg-vars-in-join-order
+                 args-idx-id
+                 attr-stats]
+          :as compiled-query} (-> (lru/compute-if-absent
+                                   query-cache
+                                   [where arg-vars rule-name->rules]
+                                   identity
+                                   (fn [_]
+                                     (compile-sub-query encode-value-fn compile-predicates? where arg-vars rule-name->rules stats)))
+                                  (add-logic-var-constraints))
+         idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
+         unary-join-indexes (for [[n v] (map-indexed vector vars-in-join-order)]
+                              (-> (idx/new-unary-join-virtual-index
+                                   (vec (for [{:keys [id idx-fn] :as join} (get var->joins v)]
+                                          (or (get idx-id->idx id)
+                                              (idx-fn db index-snapshot compiled-query)))))
+                                  (idx/wrap-with-range-constraints (get var->range-constraints v))
+                                  (cond-> (zero? (long n)) (idx/wrap-with-range-constraints first-var-range-constraints))
+                                  (->> (profile-index db [:var v]))))
+         constrain-result-fn (fn [join-keys]
+                               (constrain-join-result-by-constraints index-snapshot db idx-id->idx depth->constraints join-keys))]
+     (when (and (seq args) args-idx-id)
+       (binding [nippy/*freeze-fallback* :write-unfreezable]
+         (idx/update-relation-virtual-index!
+          (get idx-id->idx args-idx-id)
+          (vec (for [arg (distinct args)]
+                 (mapv #(arg-for-var arg %) arg-vars-in-join-order))))))
+     (log/debug :where (cio/pr-edn-str where))
+     (log/debug :vars-in-join-order vars-in-join-order)
+     (log/debug :attr-stats (cio/pr-edn-str attr-stats))
+     (log/debug :var->bindings (cio/pr-edn-str var->bindings))
+     {:n-ary-join (when (constrain-result-fn [])
+                    (-> (idx/new-n-ary-join-layered-virtual-index unary-join-indexes)
+                        (idx/new-n-ary-constraining-layered-virtual-index constrain-result-fn)))
+      :vars-in-join-order vars-in-join-order
+      :var->bindings var->bindings})))
 
 (defn query-plan-for [q encode-value-fn stats]
   (s/assert ::query q)
   (let [{:keys [where args rules]} (s/conform ::query q)]
-    (compile-sub-query encode-value-fn where (arg-vars args) (rule-name->rules rules) stats)))
+    (compile-sub-query encode-value-fn false where (arg-vars args) (rule-name->rules rules) stats)))
 
 (defn- open-index-snapshot ^java.io.Closeable [{:keys [index-store index-snapshot] :as db}]
   (if index-snapshot
     (db/open-nested-index-snapshot index-snapshot)
     (db/open-index-snapshot index-store)))
 
-(defn- with-entity-resolver-cache [entity-resolver-fn {:keys [entity-cache-size]}]
-  (let [entity-cache (lru/new-cache entity-cache-size)]
-    (fn [k]
-      (lru/compute-if-absent entity-cache k mem/copy-to-unpooled-buffer entity-resolver-fn))))
-
-(defn- new-entity-resolver-fn [{:keys [valid-time transact-time index-snapshot entity-cache?] :as db}]
+(def ^:private ^:const entity-cache-segments 16)
+
+;; Content hashes resolved at a valid time and transaction time stay
+;; the same as later transactions are indexed, so the entity cache is
+;; shared by the queries of a node. Each db reads the cache generation
+;; before opening its index snapshot. Evictions, and transactions
+;; sharing the latest tx-time, invalidate the generation around their
+;; index changes, so a db only sees values resolved by dbs whose
+;; snapshots agree with its own on them, and dbs opened during those
+;; changes bypass the cache.
+
+(defn- with-entity-resolver-cache [entity-resolver-fn {:keys [entity-cache entity-cache-generation valid-time transact-time]}]
+  (fn [k]
+    (lru/compute-if-absent-in-generation entity-cache entity-cache-generation
+                                         (vector k valid-time transact-time)
+                                         (fn [[k valid-time transact-time]]
+                                           [(mem/copy-to-unpooled-buffer k) valid-time transact-time])
+                                         (fn [[k]]
+                                           (some-> (entity-resolver-fn k) (mem/copy-to-unpooled-buffer))))))
+
+(defn- new-entity-resolver-fn [{:keys [valid-time transact-time index-snapshot entity-cache-generation] :as db}]
   (cond-> #(db/entity-as-of-resolver index-snapshot % valid-time transact-time)
-    entity-cache? (with-entity-resolver-cache db)))
+    entity-cache-generation (with-entity-resolver-cache db)))
 
 (defn- validate-args [args]
   (let [ks (keys (first args))]
@@ -1480,6 +2228,17 @@
                              (= :desc direction) -))
                      order-by))))))))
 
+(defn- order-by-external-sort [find order-by {:keys [query-parallelism query-pool] ::keys [memory-account]} memory-budget results]
+  (let [find-arg->index (zipmap find (range))]
+    (cio/binary-external-sort (order-by-comparator find order-by)
+                              (mapv (comp find-arg->index :find-arg) order-by)
+                              (mapv #(= :desc (:direction %)) order-by)
+                              {:memory-budget memory-budget
+                               :parallelism (or query-parallelism 1)
+                               :executor query-pool
+                               :memory-account memory-account}
+                              results)))
+
 (defn- replace-docs [v docs]
   (if (not-empty (::hashes (meta v)))
     (v docs)
@@ -1569,6 +2328,34 @@
                                                            (cond->> res
                                                              one? first))])))))))))
 
+(defn- prefetch-docs
+  "Pairs each batch lookup with a future of the docs its first level
+  needs, fetched up to prefetch-batches ahead of the batch being
+  projected. Deeper levels still resolve through the index snapshot,
+  so only the fetches themselves leave the query thread."
+  [{:keys [^ExecutorService projection-prefetch-pool] :as db} ^long prefetch-batches lookups]
+  (if (and projection-prefetch-pool (pos? prefetch-batches))
+    (let [fetches (map (fn [lookup]
+                         [lookup (when (not-empty (::hashes (meta lookup)))
+                                   (.submit projection-prefetch-pool ^Callable (fn []
+                                                                                 (lookup-docs lookup db))))])
+                       lookups)]
+      (map (fn [fetch _]
+             fetch)
+           fetches
+           (concat (drop prefetch-batches fetches) (repeat nil))))
+    (map vector lookups (repeat nil))))
+
+(defn- resolve-doc-lookups [[lookup ^Future prefetched-docs] db]
+  (loop [lookup (cond-> lookup
+                  prefetched-docs (replace-docs (try
+                                                  (.get prefetched-docs)
+                                                  (catch ExecutionException e
+                                                    (throw (or (.getCause e) e))))))]
+    (if (::hashes (meta lookup))
+      (recur (replace-docs lookup (lookup-docs lookup db)))
+      lookup)))
+
 (defn- compile-project-spec [project-spec]
   (let [root-fns (project-child-fns (eql/query->ast project-spec))]
     (fn [value db]
@@ -1600,53 +2387,275 @@
                       :var-type :aggregate
                       :var-binding (var->bindings (:logic-var arg))
                       :aggregate-fn (apply aggregate (:aggregate-fn arg) (:args arg))
+                      :aggregate-name (:aggregate-fn arg)
+                      :aggregate-args (:args arg)
                       :->result (fn [value _]
                                   value)}))))
 
-(defn- aggregate-result [compiled-find result]
-  (let [indexed-compiled-find (map-indexed vector compiled-find)
-        grouping-var-idxs (vec (for [[n {:keys [var-type]}] indexed-compiled-find
-                                     :when (not= :aggregate var-type)]
-                                 n))
-        idx->aggregate (->> (for [[n {:keys [aggregate-fn]}] indexed-compiled-find
-                                  :when aggregate-fn]
-                              [n aggregate-fn])
-                            (into {}))
-        groups (persistent!
-                (reduce
-                 (fn [acc tuple]
-                   (let [group (mapv tuple grouping-var-idxs)
-                         group-acc (or (get acc group)
-                                       (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (assoc acc n (aggregate-fn)))
-                                        tuple
-                                        idx->aggregate))]
-                     (assoc! acc group (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (update acc n #(aggregate-fn % (get tuple n))))
-                                        group-acc
-                                        idx->aggregate))))
-                 (transient {})
-                 result))]
-    (for [[_ group-acc] groups]
-      (reduce-kv
-       (fn [acc n aggregate-fn]
-         (update acc n aggregate-fn))
-       group-acc
-       idx->aggregate))))
+;; NOTE: the primitive accumulators are only used while the aggregate
+;; method is still the built-in one, not a user override.
+(def ^:private built-in-aggregate-methods
+  (select-keys (methods aggregate) '[count sum avg min max]))
+
+(defn- new-group-accumulator ^crux.query.GroupAccumulator [{:keys [aggregate-fn aggregate-name aggregate-args]}]
+  (if (and (empty? aggregate-args)
+           (some-> (get built-in-aggregate-methods aggregate-name)
+                   (identical? (get-method aggregate aggregate-name))))
+    (case aggregate-name
+      count (GroupAccumulator/count)
+      sum (GroupAccumulator/sum)
+      avg (GroupAccumulator/avg)
+      min (GroupAccumulator/min)
+      max (GroupAccumulator/max)
+      (GroupAccumulator/fn aggregate-fn))
+    (GroupAccumulator/fn aggregate-fn)))
+
+(defn- encode-group-key ^org.agrona.DirectBuffer [^MutableDirectBuffer b row group-idxs]
+  (loop [[idx & group-idxs] group-idxs
+         offset 0]
+    (if idx
+      (let [^DirectBuffer value-buffer (c/->value-buffer (get row idx))
+            length (.capacity value-buffer)]
+        (.putInt b offset length)
+        (.putBytes b (+ offset Integer/BYTES) value-buffer 0 length)
+        (recur group-idxs (+ offset Integer/BYTES length)))
+      (mem/limit-buffer b offset))))
+
+(def ^:private ^:const default-operator-memory-budget (* 64 1024 1024))
+(def ^:private ^:const memory-reservation-bytes (* 1024 1024))
+
+;; Reserves operator memory from the query's account in chunks, so
+;; operators don't contend on the node-wide account per row. reserved
+;; holds the bytes reserved so far, returns false once the account
+;; can't cover usage.
+(defn- reserve-memory-usage! [^MemoryAccount memory-account ^longs reserved ^long usage]
+  (let [required (- usage (aget reserved 0))]
+    (if (or (nil? memory-account) (not (pos? required)))
+      true
+      (when-let [chunk (some #(when (.tryReserve memory-account (long %)) %)
+                             [(max required memory-reservation-bytes) required])]
+        (aset reserved 0 (+ (aget reserved 0) (long chunk)))
+        true))))
+
+;; Hash aggregation. Rows are grouped by their encoded group values in
+;; a GroupHashTable, aggregating into per group accumulators. Once the
+;; groups exceed the memory budget, rows belonging to groups not yet in
+;; memory are spilled into partition files by hash, each partition
+;; aggregated on its own after the in memory groups are returned.
+
+;; Given the query's memory account, groups are also spilled once it
+;; can't reserve their memory, failing the query if that happens at the
+;; last spill level.
+
+(def ^:private ^:const aggregate-spill-partition-bits 4)
+(def ^:private ^:const aggregate-spill-max-level 8)
+(def ^:private ^:const aggregate-group-overhead-bytes 64)
+
+(defn- new-aggregate-spill-partitions []
+  (vec (for [_ (range (bit-shift-left 1 aggregate-spill-partition-bits))
+             :let [file (doto (File/createTempFile "crux-aggregate-spill" ".nippy")
+                          (.deleteOnExit))]]
+         [file (DataOutputStream. (io/output-stream file))])))
+
+(defn- aggregate-spill-partition ^long [^long hash ^long level]
+  (-> (unsigned-bit-shift-right hash (- Long/SIZE (* aggregate-spill-partition-bits (inc level))))
+      (bit-and (dec (bit-shift-left 1 aggregate-spill-partition-bits)))))
+
+(defn- aggregate-result
+  ([compiled-find memory-budget memory-account result]
+   (aggregate-result compiled-find memory-budget memory-account 0 result))
+  ([compiled-find memory-budget ^MemoryAccount memory-account level result]
+   (lazy-seq
+    (let [memory-budget (long memory-budget)
+          level (long level)
+          indexed-compiled-find (map-indexed vector compiled-find)
+          grouping-var-idxs (vec (for [[n {:keys [var-type]}] indexed-compiled-find
+                                       :when (not= :aggregate var-type)]
+                                   n))
+          aggregate-idxs (vec (for [[n {:keys [var-type]}] indexed-compiled-find
+                                    :when (= :aggregate var-type)]
+                                n))
+          accumulators (mapv #(new-group-accumulator (nth compiled-find %)) aggregate-idxs)
+          group-overhead-bytes (+ aggregate-group-overhead-bytes (* Long/BYTES (count compiled-find)))
+          table (GroupHashTable.)
+          group-rows (ArrayList.)
+          key-buffer (ExpandableDirectByteBuffer.)
+          reserved (long-array 1)
+          memory-usage (fn []
+                         (+ (.memoryUsage table)
+                            (* (.size table) group-overhead-bytes)
+                            (long (reduce + (map #(.memoryUsage ^GroupAccumulator %) accumulators)))))
+          accumulate! (fn [group row]
+                        (dotimes [n (count aggregate-idxs)]
+                          (.add ^GroupAccumulator (nth accumulators n) (int group) (get row (nth aggregate-idxs n)))))
+          spill-partitions (reduce
+                            (fn [spill-partitions row]
+                              (let [k (encode-group-key key-buffer row grouping-var-idxs)
+                                    hash (ByteUtils/hash64 k)
+                                    group (.find table k hash)]
+                                (cond
+                                  (not (neg? group))
+                                  (do (accumulate! group row)
+                                      spill-partitions)
+
+                                  spill-partitions
+                                  (let [[_ out] (nth spill-partitions (aggregate-spill-partition hash level))]
+                                    (nippy/freeze-to-out! out row)
+                                    spill-partitions)
+
+                                  :else
+                                  (let [group (.insert table k hash)]
+                                    (.add group-rows row)
+                                    (accumulate! group row)
+                                    (let [usage (long (memory-usage))
+                                          reserved? (reserve-memory-usage! memory-account reserved usage)]
+                                      (cond
+                                        (and (< level aggregate-spill-max-level)
+                                             (or (not reserved?) (> usage memory-budget)))
+                                        (new-aggregate-spill-partitions)
+
+                                        (not reserved?)
+                                        (do (.reserve memory-account (- usage (aget reserved 0)) "aggregation")
+                                            (aset reserved 0 usage)
+                                            nil)))))))
+                            nil
+                            result)]
+      (doseq [[_ ^DataOutputStream out] spill-partitions]
+        (.close out))
+      (concat
+       (for [group (range (.size table))]
+         (reduce-kv
+          (fn [acc n ^GroupAccumulator accumulator]
+            (assoc acc (nth aggregate-idxs n) (.result accumulator group)))
+          (.get group-rows group)
+          accumulators))
+       (lazy-seq
+        (when memory-account
+          (.release memory-account (aget reserved 0)))
+        (mapcat (fn [[file]]
+                  (aggregate-result compiled-find memory-budget memory-account (inc level) (first (cio/nippy-file->seq+cleaner-action file))))
+                spill-partitions)))))))
+
+;; Intra-query parallelism: the distinct keys of the first variable in
+;; join order are split into contiguous ranges, and each range is joined
+;; by a worker using its own nested index snapshot and indexes, as the
+;; virtual indexes are stateful and not thread-safe. Ranges are split
+;; lazily as the workers consume them, so the first level is walked
+;; alongside the join rather than up front.
+
+;; While they run, workers hold the read lock of the query's workers,
+;; as their snapshots are nested in the query's own. Closing the query
+;; cancels the workers still in flight, then waits for them on the
+;; write lock before its snapshot is closed. Workers starting after
+;; that return straight away.
+
+(defn- new-query-workers []
+  {:futures (ConcurrentHashMap/newKeySet)
+   :lock (StampedLock.)
+   :closed? (AtomicBoolean.)})
+
+(defn- close-query-workers [{:keys [^Set futures lock ^AtomicBoolean closed?]}]
+  (.set closed? true)
+  (doseq [^Future f futures]
+    (.cancel f true))
+  (cio/with-write-lock lock))
+
+;; Ranges hold a few partitions of the estimated distinct keys of the
+;; first variable per worker, with a minimum, so that the setup of each
+;; worker's snapshot and indexes is spread over enough keys. Queries
+;; whose first variable isn't in a triple clause have no estimate and
+;; aren't split.
+
+(def ^:private ^:const partitions-per-worker 4)
+(def ^:private min-partition-keys 1024)
+
+(defn- first-var-partition-size [stats where first-var ^long query-parallelism]
+  (let [{triple-clauses :triple} (normalize-clauses where)
+        cardinalities (for [{:keys [e v] :as clause} triple-clauses
+                            :when (or (= first-var e) (= first-var v))]
+                        (clause-cardinality stats clause first-var))]
+    (when (seq cardinalities)
+      (max (long min-partition-keys)
+           (long (Math/ceil (/ (double (reduce min cardinalities))
+                               (* partitions-per-worker query-parallelism))))))))
+
+(defn- first-var-key-ranges [n-ary-join ^long partition-size]
+  (letfn [(step [k]
+            (lazy-seq
+             (when k
+               (loop [k k
+                      min-k nil
+                      max-k nil
+                      n 0]
+                 (when (Thread/interrupted)
+                   (throw (InterruptedException.)))
+                 (if (or (nil? k) (= n partition-size))
+                   (cons [min-k max-k] (step (some-> k (mem/copy-to-unpooled-buffer))))
+                   (let [k (mem/copy-to-unpooled-buffer k)]
+                     (recur (db/next-values n-ary-join) (or min-k k) k (inc n))))))))]
+    (step (some-> (db/seek-values n-ary-join nil) (mem/copy-to-unpooled-buffer)))))
+
+(defn- key-range-join-results [db where args rule-name->rules stats var-bindings batch-size [min-k max-k]]
+  (with-open [index-snapshot (open-index-snapshot db)]
+    (let [db (assoc db :index-snapshot index-snapshot)
+          db (assoc db :entity-resolver-fn (new-entity-resolver-fn db))
+          {:keys [n-ary-join]} (build-sub-query index-snapshot db where args rule-name->rules stats
+                                                #(-> (idx/new-greater-than-equal-virtual-index % (Box. min-k))
+                                                     (idx/new-less-than-equal-virtual-index (Box. max-k))))]
+      (->> (idx/layered-idx->batch-seq n-ary-join batch-size)
+           (into [] (mapcat #(join-keys-batch->results index-snapshot var-bindings %)))))))
+
+(defn- parallel-join-results [{:keys [^ExecutorService query-pool query-parallelism] ::keys [query-workers]} join-key-range key-ranges]
+  (let [{^Set in-flight :futures, :keys [lock ^AtomicBoolean closed?]} query-workers
+        submit (fn [key-range]
+                 (doto (.submit query-pool ^Callable (fn []
+                                                       (cio/with-read-lock lock
+                                                         (when (.get closed?)
+                                                           (throw (CancellationException. "Query closed")))
+                                                         (join-key-range key-range))))
+                   (->> (.add in-flight))))
+        read-ahead (* 2 (long query-parallelism))
+        cancel (fn [futures]
+                 (doseq [^Future f futures]
+                   (.cancel f true)))]
+    (letfn [(step [futures key-ranges]
+              (lazy-seq
+               (when-let [^Future f (first futures)]
+                 (let [futures (try
+                                 (cond-> futures
+                                   (seq key-ranges) (conj (submit (first key-ranges))))
+                                 (catch Throwable t
+                                   (cancel futures)
+                                   (throw t)))
+                       results (try
+                                 (.get f)
+                                 (catch ExecutionException e
+                                   (cancel futures)
+                                   (throw (or (.getCause e) e)))
+                                 (catch Throwable t
+                                   (cancel futures)
+                                   (throw t))
+                                 (finally
+                                   (.remove in-flight f)))]
+                   (concat results (step (subvec futures 1) (rest key-ranges)))))))]
+      (step (mapv submit (take read-ahead key-ranges))
+            (drop read-ahead key-ranges)))))
 
 (defn query [{:keys [valid-time transact-time document-store index-store index-snapshot] :as db} ^ConformedQuery conformed-q]
   (let [q (.q-normalized conformed-q)
         q-conformed (.q-conformed conformed-q)
         {:keys [find where args rules offset limit order-by full-results?]} q-conformed
-        stats (db/read-index-meta index-store :crux/attribute-stats)]
+        stats (-> (db/read-index-meta index-store :crux/attribute-stats)
+                  (with-attribute-sketches index-store))]
     (log/debug :query (cio/pr-edn-str (-> q
                                           (assoc :arg-keys (mapv (comp set keys) (:args q)))
                                           (dissoc :args))))
     (validate-args args)
-    (let [rule-name->rules (with-meta (rule-name->rules rules) {:rules (:rules q)})
-          db (assoc db :index-snapshot index-snapshot)
+    (let [rule-name->rules (or (:rule-name->rules conformed-q)
+                               (with-meta (rule-name->rules rules) {:rules (:rules q)}))
+          db (assoc db
+                    :index-snapshot index-snapshot
+                    ::sub-query-cache (new-sub-query-cache))
           entity-resolver-fn (or (:entity-resolver-fn db)
                                  (new-entity-resolver-fn db))
           db (assoc db :entity-resolver-fn entity-resolver-fn)
@@ -1657,7 +2666,36 @@
           aggregate? (contains? var-types :aggregate)
           project? (or (contains? var-types :project) full-results?)
           var-bindings (mapv :var-binding compiled-find)
-          ->result-fns (mapv :->result compiled-find)]
+          ->result-fns (mapv :->result compiled-find)
+          batch-size (long (or (:batch-size q-conformed)
+                               (:batch-size db)
+                               100))
+          operator-memory-budget (long (or (:operator-memory-budget q-conformed)
+                                           (:operator-memory-budget db)
+                                           default-operator-memory-budget))
+          ;; NOTE: ordered queries with a limit keep the first limit +
+          ;; offset rows in a bounded heap, unless that is more rows
+          ;; than the external sort keeps in memory per part anyway.
+          top-k (when limit
+                  (let [k (+ (long limit) (long (or offset 0)))]
+                    (when (<= k cio/default-external-sort-part-size)
+                      k)))
+          join-batch-size (cond->> batch-size
+                            (and limit (not aggregate?) (not order-by)) (min (+ (long limit) (long (or offset 0)))))
+          parallel? (and n-ary-join
+                         (:query-pool db)
+                         (::query-workers db)
+                         (> (long (or (:query-parallelism db) 1)) 1)
+                         (or aggregate? order-by (nil? limit)))
+          partition-size (when parallel?
+                           (first-var-partition-size stats where (first (:vars-in-join-order built-query))
+                                                     (:query-parallelism db)))
+          ;; NOTE: workers run with the bindings of the calling thread,
+          ;; e.g. *recursion-table*.
+          join-key-range (when partition-size
+                           (bound-fn [key-range]
+                             (key-range-join-results db where args rule-name->rules stats
+                                                     var-bindings batch-size key-range)))]
       (doseq [{:keys [logic-var var-binding]} compiled-find
               :when (nil? var-binding)]
         (throw (IllegalArgumentException.
@@ -1668,30 +2706,29 @@
                 (str "Order by requires an element from :find. unreturned element: " find-arg))))
 
       (lazy-seq
-       (cond->> (for [join-keys (idx/layered-idx->seq n-ary-join)]
-                  (mapv (fn [var-binding]
-                          (bound-result-for-var index-snapshot var-binding join-keys))
-                        var-bindings))
-
-         aggregate? (aggregate-result compiled-find)
-         order-by (cio/external-sort (order-by-comparator find order-by))
+       (cond->> (let [key-ranges (when partition-size
+                                   (first-var-key-ranges n-ary-join partition-size))]
+                  (if (next key-ranges)
+                    (parallel-join-results db join-key-range key-ranges)
+                    (->> (idx/layered-idx->batch-seq n-ary-join join-batch-size)
+                         (sequence (mapcat #(join-keys-batch->results index-snapshot var-bindings %))))))
+
+         aggregate? (aggregate-result compiled-find operator-memory-budget (::memory-account db))
+         (and order-by top-k) (cio/top-k (order-by-comparator find order-by) top-k)
+         (and order-by (not top-k)) (order-by-external-sort find order-by db operator-memory-budget)
          offset (drop offset)
          limit (take limit)
          project? (map (fn [row]
                          (mapv (fn [value ->result]
                                  (->result value db))
                                row ->result-fns)))
-         project? (partition-all (or (:batch-size q-conformed)
-                                     (:batch-size db)
-                                     100))
+         project? (partition-all batch-size)
          project? (map (fn [results]
                          (->> results
                               (mapv raise-doc-lookup-out-of-coll)
                               raise-doc-lookup-out-of-coll)))
-         project? (mapcat (fn [lookup]
-                            (if (::hashes (meta lookup))
-                              (recur (replace-docs lookup (lookup-docs lookup db)))
-                              lookup))))))))
+         project? (prefetch-docs db (long (or (:projection-prefetch-batches db) 0)))
+         project? (mapcat #(resolve-doc-lookups % db)))))))
 
 (defn entity-tx [{:keys [valid-time transact-time] :as db} index-snapshot eid]
   (some-> (db/entity-as-of index-snapshot eid valid-time transact-time)
@@ -1704,10 +2741,297 @@
         (get content-hash)
         (c/keep-non-evicted-doc))))
 
+(defn- entity-txs [{:keys [valid-time transact-time] :as db} index-snapshot eids]
+  ;; seeking in key order keeps the entity-as-of iterator moving forward
+  (->> (for [eid (distinct eids)]
+         (MapEntry/create (c/->id-buffer eid) eid))
+       (sort-by key mem/buffer-comparator)
+       (reduce (fn [acc [eid-buffer eid]]
+                 (if-let [etx (db/entity-as-of index-snapshot eid-buffer valid-time transact-time)]
+                   (assoc acc eid (c/entity-tx->edn etx))
+                   acc))
+               {})))
+
+(defn- entities [{:keys [document-store] :as db} index-snapshot eids]
+  (let [eid->entity-tx (entity-txs db index-snapshot eids)
+        docs (db/fetch-docs document-store (into #{} (map :crux.db/content-hash) (vals eid->entity-tx)))]
+    (reduce-kv (fn [acc eid {:crux.db/keys [content-hash]}]
+                 (if-let [doc (c/keep-non-evicted-doc (get docs content-hash))]
+                   (assoc acc eid doc)
+                   acc))
+               {}
+               eid->entity-tx)))
+
+;; Result cache
+
+;; Results are cached per normalized query, valid time and transaction
+;; time. Entries for the latest transaction are kept as that moves on,
+;; unless a transaction touches one of the attributes the query reads,
+;; and valid times past any valid time in the index share their entry.
+
+;; NOTE: predicates calling any other fn are assumed to read any
+;; attribute, as the fn may look up documents or entities itself.
+(def ^:private pure-fns
+  #{= not= == < > <= >= compare identity not
+    nil? some? true? false? zero? pos? neg? even? odd?
+    number? integer? int? double? string? keyword? symbol? boolean? inst? uuid?
+    coll? map? vector? set? seq? sequential?
+    + - * / inc dec quot rem mod max min
+    str subs name namespace keyword symbol format
+    count empty? not-empty contains? get get-in first second last nth
+    vector list hash-map hash-set set vec keys vals
+    re-find re-matches re-pattern
+    string/blank? string/starts-with? string/ends-with? string/includes?
+    string/lower-case string/upper-case string/trim})
+
+(def ^:private nondeterministic-fns #{rand rand-int rand-nth shuffle random-sample})
+
+(defn- combine-query-attributes [a b]
+  (cond
+    (or (nil? a) (nil? b)) nil
+    (or (= ::all-attributes a) (= ::all-attributes b)) ::all-attributes
+    :else (set/union a b)))
+
+(defn- query-attributes
+  "Returns the attributes a conformed query reads, ::all-attributes if
+  it may read any of them, or nil if its results can't be cached."
+  [{:keys [find where rules full-results?]}]
+  (reduce
+   (fn [acc x]
+     (if-not (and (vector? x) (keyword? (first x)))
+       acc
+       (let [[type clause] x]
+         (case type
+           :triple (combine-query-attributes acc #{(:a clause)})
+           :project ::all-attributes
+           :aggregate (if (contains? '#{rand sample} (:aggregate-fn clause))
+                        (reduced nil)
+                        acc)
+           :pred (let [{:keys [pred-fn args]} (:pred clause)]
+                   (cond
+                     (= 'get-attr pred-fn) (let [attr (second args)]
+                                             (combine-query-attributes acc (if (logic-var? attr)
+                                                                             ::all-attributes
+                                                                             #{attr})))
+                     (= 'q pred-fn) (let [q-conformed (s/conform ::query (first args))]
+                                      (combine-query-attributes acc (if (s/invalid? q-conformed)
+                                                                      ::all-attributes
+                                                                      (query-attributes q-conformed))))
+                     (symbol? pred-fn) (if (logic-var? pred-fn)
+                                         ::all-attributes
+                                         acc)
+                     (contains? nondeterministic-fns pred-fn) (reduced nil)
+                     (contains? pure-fns pred-fn) acc
+                     :else ::all-attributes))
+           acc))))
+   (if full-results? ::all-attributes #{})
+   (tree-seq coll? seq [find where rules])))
+
+(defn- tx-events->touched-attributes [{:keys [index-store document-store]} tx-events ^Date prev-tx-time
+                                      {::tx/keys [tx-time], :keys [crux.db/valid-time]}]
+  (with-open [index-snapshot (db/open-index-snapshot index-store)]
+    (let [prev-content-hash (fn [eid start-valid-time]
+                              (when prev-tx-time
+                                (some-> (db/entity-as-of index-snapshot (c/new-id eid) (or start-valid-time valid-time tx-time) prev-tx-time)
+                                        (.content-hash))))
+          content-hashes (reduce (fn [acc [op eid & args]]
+                                   (case op
+                                     :crux.tx/put (let [[content-hash start-valid-time end-valid-time] args]
+                                                    (if end-valid-time
+                                                      (reduced ::all-attributes)
+                                                      (conj acc content-hash (prev-content-hash eid start-valid-time))))
+                                     :crux.tx/delete (let [[start-valid-time end-valid-time] args]
+                                                       (if end-valid-time
+                                                         (reduced ::all-attributes)
+                                                         (conj acc (prev-content-hash eid start-valid-time))))
+                                     :crux.tx/cas (let [[old-content-hash new-content-hash] args]
+                                                    (conj acc old-content-hash new-content-hash))
+                                     :crux.tx/match acc
+                                     :crux.tx/evict (reduced ::evicted)
+                                     (reduced ::all-attributes)))
+                                 #{}
+                                 tx-events)]
+      (if (set? content-hashes)
+        (->> (db/fetch-docs document-store (into #{} (comp (remove nil?) (map c/new-id)) content-hashes))
+             (vals)
+             (into #{} (mapcat keys)))
+        content-hashes))))
+
+(defn- read-max-valid-time [index-store]
+  (db/read-index-meta index-store :crux/max-valid-time (when (db/latest-completed-tx index-store)
+                                                         ::unknown)))
+
+(defn- invalidate-result-cache [{:keys [^Map entries !state] :as result-cache}
+                                {::tx/keys [submitted-tx], ::txe/keys [tx-events], :keys [committed?]}]
+  (let [touched-attributes (if committed?
+                             (tx-events->touched-attributes result-cache tx-events (:tx-time @!state) submitted-tx)
+                             #{})]
+    (locking entries
+      (cond
+        (= ::evicted touched-attributes) (.clear entries)
+
+        (not-empty touched-attributes)
+        (let [it (.iterator (.entrySet entries))]
+          (while (.hasNext it)
+            (let [^Map$Entry entry (.next it)
+                  [_ _ tx-key] (.getKey entry)
+                  {:keys [attributes]} (.getValue entry)]
+              (when (and (= ::latest tx-key)
+                         (or (= ::all-attributes touched-attributes)
+                             (= ::all-attributes attributes)
+                             (some attributes touched-attributes)))
+                (.remove it))))))
+      (reset! !state {:tx-time (::tx/tx-time submitted-tx)
+                      :max-valid-time (read-max-valid-time (:index-store result-cache))}))))
+
+(defn- new-result-cache [{:keys [bus index-store] :as query-engine} ^long size]
+  (let [entries (proxy [LinkedHashMap] [size 0.75 true]
+                  (removeEldestEntry [_]
+                    (> (count this) size)))
+        result-cache {:entries entries
+                      :!state (atom {:tx-time (::tx/tx-time (db/latest-completed-tx index-store))
+                                     :max-valid-time (read-max-valid-time index-store)})
+                      :index-store index-store
+                      :document-store (:document-store query-engine)}]
+    (assoc result-cache :listener (bus/listen bus {:crux/event-types #{::tx/indexed-tx}}
+                                              (fn [event]
+                                                (try
+                                                  (invalidate-result-cache result-cache event)
+                                                  (catch Exception e
+                                                    (log/error e "Error invalidating query result cache, clearing it:")
+                                                    (locking entries
+                                                      (.clear entries)))))))))
+
+(defn- cached-query-result [{:keys [^Map entries !state] :as result-cache}
+                            {:keys [^Date valid-time ^Date transact-time]} ^ConformedQuery conformed-query f]
+  (if-not result-cache
+    (f)
+    (let [{:keys [tx-time max-valid-time]} @!state
+          latest? (and tx-time (= tx-time transact-time))
+          k [(.q-normalized conformed-query)
+             (if (and (not= ::unknown max-valid-time)
+                      (or (nil? max-valid-time) (not (neg? (compare valid-time max-valid-time)))))
+               ::now
+               valid-time)
+             (if latest?
+               ::latest
+               transact-time)]]
+      (if-let [entry (locking entries
+                       (.get entries k))]
+        (:result entry)
+        (let [result (f)]
+          (when-let [attributes (and tx-time (query-attributes (.q-conformed conformed-query)))]
+            (locking entries
+              (when (or (not latest?) (= tx-time (:tx-time @!state)))
+                (.put entries k {:result result
+                                 :attributes attributes}))))
+          result)))))
+
+;; Results are computed from a conformed query, so prepared queries
+;; can skip normalizing and conforming the query per call.
+
+(defn- new-query-memory-account [{:keys [^MemoryAccount memory-account query-memory-budget] :as db} q]
+  (when (and memory-account (not (::memory-account db)))
+    ;; NOTE: the query option can only lower the engine's budget.
+    (MemoryAccount. memory-account (min (long (or (:query-memory-budget q) Long/MAX_VALUE))
+                                        (long (or query-memory-budget Long/MAX_VALUE))))))
+
+(defn- open-conformed-query ^crux.api.ICursor [{:keys [bus entity-resolver-fn] :as db} ^ConformedQuery conformed-query]
+  (let [profile (when (and (:profile? (.q-normalized conformed-query))
+                           (not (::profile db)))
+                  (new-query-profile))
+        ^MemoryAccount memory-account (new-query-memory-account db (.q-normalized conformed-query))
+        query-workers (when (:query-pool db)
+                        (new-query-workers))
+        db (cond-> db
+             profile (with-query-profile profile)
+             memory-account (assoc ::memory-account memory-account)
+             query-workers (assoc ::query-workers query-workers))
+        index-snapshot (open-index-snapshot db)
+        db (assoc db :index-snapshot index-snapshot)
+        entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db))
+        db (assoc db :entity-resolver-fn entity-resolver-fn)
+
+        query-id (str (UUID/randomUUID))
+        safe-query (-> conformed-query .q-normalized (dissoc :args))]
+
+    (when bus
+      (bus/send bus (cond-> {:crux/event-type ::submitted-query
+                             ::query safe-query
+                             ::query-id query-id}
+                      memory-account (assoc ::memory-account memory-account))))
+    (->> (try
+           (cond->> (crux.query/query db conformed-query)
+             profile (map (fn [row]
+                            (.incrementAndGet ^AtomicLong (:rows profile))
+                            row)))
+           (catch Exception e
+             (some-> memory-account (.releaseAll))
+             (when bus
+               (bus/send bus {:crux/event-type ::failed-query
+                              ::query safe-query
+                              ::query-id query-id
+                              ::error {:type (cio/pr-edn-str (type e))
+                                       :message (.getMessage e)}}))
+             (throw e)))
+         (cio/->cursor (fn []
+                         (some-> query-workers (close-query-workers))
+                         (cio/try-close index-snapshot)
+                         (some-> memory-account (.releaseAll))
+                         (when bus
+                           (bus/send bus (cond-> {:crux/event-type ::completed-query
+                                                  ::query safe-query
+                                                  ::query-id query-id}
+                                           profile (assoc ::profile (query-profile-summary profile))))))))))
+
+(defn- conformed-query-result [{:keys [result-cache ^ScheduledExecutorService interrupt-executor query-timeout] :as db}
+                               ^ConformedQuery conformed-query]
+  (cached-query-result
+   (when-not (:profile? (.q-normalized conformed-query))
+     result-cache)
+   db conformed-query
+   #(with-open [res (open-conformed-query db conformed-query)]
+      (let [q (.q-normalized conformed-query)
+            result-coll-fn (if (some q [:order-by :limit :offset]) vec set)
+            !timed-out? (atom false)
+            ^Future
+            interrupt-job (when-let [timeout-ms (get q :timeout query-timeout)]
+                            (let [caller-thread (Thread/currentThread)]
+                              (.schedule interrupt-executor
+                                         ^Runnable
+                                         (fn []
+                                           (reset! !timed-out? true)
+                                           (.interrupt caller-thread))
+                                         ^long timeout-ms
+                                         TimeUnit/MILLISECONDS)))]
+        (try
+          (result-coll-fn (iterator-seq res))
+          (catch InterruptedException e
+            (throw (if @!timed-out?
+                     (TimeoutException. "Query timed out.")
+                     e)))
+          (finally
+            (when interrupt-job
+              (.cancel interrupt-job false))))))))
+
+(defn profile-query
+  "Runs the query with :profile? set, returning its result along with the
+  per-clause and per-var index counters of the run."
+  [db q]
+  (let [profile (new-query-profile)
+        result (.query ^ICruxDatasource (with-query-profile db profile)
+                       (assoc (normalize-query q) :profile? true))]
+    (.set ^AtomicLong (:rows profile) (count result))
+    {:result result
+     :profile (query-profile-summary profile)}))
+
+(declare prepare-query)
+
 (defrecord QueryDatasource [document-store index-store bus tx-ingester
                             ^Date valid-time ^Date transact-time
                             ^ScheduledExecutorService interrupt-executor
                             conform-cache query-cache projection-cache
+                            result-cache
                             index-snapshot
                             entity-resolver-fn]
   Closeable
@@ -1724,60 +3048,22 @@
     (with-open [index-snapshot (open-index-snapshot this)]
       (entity-tx this index-snapshot eid)))
 
+  (entities [this eids]
+    (with-open [index-snapshot (open-index-snapshot this)]
+      (entities this index-snapshot eids)))
+
+  (entityTxs [this eids]
+    (with-open [index-snapshot (open-index-snapshot this)]
+      (entity-txs this index-snapshot eids)))
+
   (query [this query]
-    (with-open [res (.openQuery this query)]
-      (let [result-coll-fn (if (some (normalize-query query) [:order-by :limit :offset]) vec set)
-            !timed-out? (atom false)
-            ^Future
-            interrupt-job (when-let [timeout-ms (get query :timeout (:query-timeout this))]
-                            (let [caller-thread (Thread/currentThread)]
-                              (.schedule interrupt-executor
-                                         ^Runnable
-                                         (fn []
-                                           (reset! !timed-out? true)
-                                           (.interrupt caller-thread))
-                                         ^long timeout-ms
-                                         TimeUnit/MILLISECONDS)))]
-        (try
-          (result-coll-fn (iterator-seq res))
-          (catch InterruptedException e
-            (throw (if @!timed-out?
-                     (TimeoutException. "Query timed out.")
-                     e)))
-          (finally
-            (when interrupt-job
-              (.cancel interrupt-job false)))))))
+    (conformed-query-result this (normalize-and-conform-query conform-cache query)))
 
-  (openQuery [db query]
-    (let [index-snapshot (open-index-snapshot db)
-          db (assoc db :index-snapshot index-snapshot)
-          entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db))
-          db (assoc db :entity-resolver-fn entity-resolver-fn)
+  (openQuery [this query]
+    (open-conformed-query this (normalize-and-conform-query conform-cache query)))
 
-          conformed-query (normalize-and-conform-query conform-cache query)
-          query-id (str (UUID/randomUUID))
-          safe-query (-> conformed-query .q-normalized (dissoc :args))]
-
-      (when bus
-        (bus/send bus {:crux/event-type ::submitted-query
-                       ::query safe-query
-                       ::query-id query-id}))
-      (->> (try
-             (crux.query/query db conformed-query)
-             (catch Exception e
-               (when bus
-                 (bus/send bus {:crux/event-type ::failed-query
-                                ::query safe-query
-                                ::query-id query-id
-                                ::error {:type (cio/pr-edn-str (type e))
-                                         :message (.getMessage e)}}))
-               (throw e)))
-           (cio/->cursor (fn []
-                           (cio/try-close index-snapshot)
-                           (when bus
-                             (bus/send bus {:crux/event-type ::completed-query
-                                            ::query safe-query
-                                            ::query-id query-id})))))))
+  (prepareQuery [this query]
+    (prepare-query conform-cache query))
 
   (entityHistory [this eid opts]
     (with-open [history (.openEntityHistory this eid opts)]
@@ -1842,6 +3128,32 @@
       (when (db/index-tx-events in-flight-tx (map txc/->tx-event conformed-tx-ops))
         (api/db in-flight-tx valid-time)))))
 
+(defrecord PreparedQuery [^ConformedQuery conformed-query]
+  IPreparedQuery
+  (query [_ db args]
+    (if (instance? QueryDatasource db)
+      (conformed-query-result db (with-query-args conformed-query (some-> args vec)))
+      (.query ^ICruxDatasource db (cond-> (.q-normalized conformed-query)
+                                    args (assoc :args (vec args))))))
+
+  (openQuery [_ db args]
+    (if (instance? QueryDatasource db)
+      (open-conformed-query db (with-query-args conformed-query (some-> args vec)))
+      (.openQuery ^ICruxDatasource db (cond-> (.q-normalized conformed-query)
+                                        args (assoc :args (vec args)))))))
+
+(defn prepare-query
+  "Conforms query once, along with its rules, for repeated execution
+  through crux.api.IPreparedQuery with new args."
+  (^crux.api.IPreparedQuery [query]
+   (prepare-query (lru/new-cache 1) query))
+  (^crux.api.IPreparedQuery [conform-cache query]
+   (let [conformed-query (normalize-and-conform-query conform-cache query)
+         rules (:rules (.q-conformed conformed-query))]
+     (->PreparedQuery (assoc conformed-query
+                             :rule-name->rules (with-meta (rule-name->rules rules)
+                                                 {:rules (:rules (.q-normalized conformed-query))}))))))
+
 (defmethod print-method QueryDatasource [{:keys [valid-time transact-time]} ^Writer w]
   (.write w (format "#<CruxDB %s>" (cio/pr-edn-str {:crux.db/valid-time valid-time, :crux.tx/tx-time transact-time}))))
 
@@ -1850,7 +3162,10 @@
 
 (defrecord QueryEngine [^ScheduledExecutorService interrupt-executor document-store
                         index-store bus
-                        query-cache conform-cache projection-cache]
+                        query-cache conform-cache projection-cache result-cache
+                        entity-cache ^ExecutorService query-pool
+                        ^ExecutorService projection-prefetch-pool
+                        ^MemoryAccount memory-account]
   api/DBProvider
   (db [this] (api/db this nil nil))
   (db [this valid-time] (api/db this valid-time nil))
@@ -1871,7 +3186,8 @@
                                                                    :bus bus
                                                                    :query-engine this})
                                    :valid-time valid-time
-                                   :transact-time tx-time))))
+                                   :transact-time tx-time
+                                   :entity-cache-generation (some-> entity-cache (lru/current-generation))))))
 
   (open-db [this] (api/open-db this nil nil))
   (open-db [this valid-time] (api/open-db this valid-time nil))
@@ -1884,6 +3200,15 @@
 
   Closeable
   (close [_]
+    (some-> ^Closeable (:listener result-cache) (.close))
+    (when query-pool
+      (doto query-pool
+        (.shutdownNow)
+        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))
+    (when projection-prefetch-pool
+      (doto projection-prefetch-pool
+        (.shutdownNow)
+        (.awaitTermination 60000 TimeUnit/MILLISECONDS)))
     (when interrupt-executor
       (doto interrupt-executor
         (.shutdown)
@@ -1904,8 +3229,8 @@
                                   :entity-cache? {:doc "Enable Query Entity Cache"
                                                   :default true
                                                   :spec ::sys/boolean}
-                                  :entity-cache-size {:doc "Query Entity Cache Size"
-                                                      :default 10000
+                                  :entity-cache-size {:doc "Query Entity Cache Size, shared by all queries"
+                                                      :default 100000
                                                       :spec ::sys/nat-int}
                                   :query-timeout {:doc "Query Timeout ms"
                                                   :default 30000
@@ -1913,9 +3238,214 @@
                                   :batch-size {:doc "Batch size of results"
                                                :default 100
                                                :required? true
-                                               :spec ::sys/pos-int}}}
-  [{:keys [query-cache-size conform-cache-size projection-cache-size] :as opts}]
+                                               :spec ::sys/pos-int}
+                                  :operator-memory-budget {:doc "Bytes a query operator, like aggregation or sorting, may use before spilling to disk"
+                                                           :default default-operator-memory-budget
+                                                           :spec ::sys/pos-int}
+                                  :query-memory-budget {:doc "Bytes the operators of a single query may hold in memory before spilling or failing the query, nil for no limit"
+                                                        :default nil
+                                                        :spec ::sys/pos-int}
+                                  :node-query-memory-budget {:doc "Bytes the operators of all running queries may hold in memory before spilling or failing queries, nil for no limit"
+                                                             :default nil
+                                                             :spec ::sys/pos-int}
+                                  :compile-predicates? {:doc "Compile predicate constraints of compiled queries into classes of their own, rather than interpreting them"
+                                                        :default false
+                                                        :spec ::sys/boolean}
+                                  :query-parallelism {:doc "Number of threads a single query may use to join partitions of its first variable, 1 disables"
+                                                      :default 1
+                                                      :spec ::sys/pos-int}
+                                  :result-cache-size {:doc "Query Result Cache Size, 0 disables"
+                                                      :default 0
+                                                      :spec ::sys/nat-int}
+                                  :projection-prefetch-batches {:doc "Number of batches of projected documents fetched ahead of the batch being projected, 0 disables"
+                                                                :default 2
+                                                                :spec ::sys/nat-int}
+                                  :projection-prefetch-threads {:doc "Number of threads fetching projected documents ahead, shared by all queries"
+                                                                :default 4
+                                                                :spec ::sys/pos-int}}}
+  [{:keys [query-cache-size conform-cache-size projection-cache-size entity-cache? ^long entity-cache-size
+           ^long query-parallelism ^long result-cache-size ^long projection-prefetch-batches ^long projection-prefetch-threads
+           node-query-memory-budget] :as opts}]
   (map->QueryEngine (merge opts {:conform-cache (lru/new-cache conform-cache-size)
+                                 :entity-cache (when entity-cache?
+                                                 (lru/new-generational-cache entity-cache-size entity-cache-segments))
                                  :query-cache (lru/new-cache query-cache-size)
                                  :projection-cache (lru/new-cache projection-cache-size)
-                                 :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter"))})))
+                                 :result-cache (when (pos? result-cache-size)
+                                                 (new-result-cache opts result-cache-size))
+                                 :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter"))
+                                 :query-pool (when (> query-parallelism 1)
+                                               (Executors/newFixedThreadPool query-parallelism (cio/thread-factory "crux-query-worker")))
+                                 :projection-prefetch-pool (when (pos? projection-prefetch-batches)
+                                                             (Executors/newFixedThreadPool projection-prefetch-threads (cio/thread-factory "crux-projection-prefetch")))
+                                 :memory-account (MemoryAccount. nil (long (or node-query-memory-budget Long/MAX_VALUE)))})))
+
+;; Query deltas
+
+;; A subscribed query is evaluated as of each indexed transaction, and
+;; only the tuples it adds and removes are sent on. When a query only
+;; joins the triples of its entity vars, filtered by ranges and
+;; predicates, a transaction can only change results that bind one of
+;; those vars to an entity it touched, so the query is evaluated for
+;; these entities alone. Otherwise, or when valid time passing may
+;; have changed results, the query is evaluated in full.
+
+(defn- incremental-entity-vars [{:keys [find where rules] :as q-conformed}]
+  (when (and (set? (query-attributes q-conformed))
+             (empty? rules)
+             (every? (comp #{:logic-var} first) find)
+             (every? (fn [[type clause]]
+                       (case type
+                         :triple (logic-var? (:e clause))
+                         :range true
+                         :pred (let [{:keys [pred-fn]} (:pred clause)]
+                                 (or (fn? pred-fn) (contains? '#{== !=} pred-fn)))
+                         false))
+                     where))
+    (vec (distinct (for [[type {:keys [e]}] where
+                         :when (= :triple type)]
+                     e)))))
+
+(defn- touched-entities
+  "Returns the :crux.db/id values of the entities tx-events touch, or
+  nil if these can't be known from the events alone."
+  [{:keys [document-store] :as db} tx-events]
+  (reduce (fn [acc [op eid & args]]
+            (case op
+              (:crux.tx/put :crux.tx/delete :crux.tx/cas)
+              (let [content-hashes (case op
+                                     :crux.tx/put [(first args)]
+                                     :crux.tx/cas (take 2 args)
+                                     [])
+                    docs (db/fetch-docs document-store (set (keep #(some-> % c/new-id) content-hashes)))]
+                (into acc (keep :crux.db/id) (cons (.entity ^ICruxDatasource db eid) (vals docs))))
+              :crux.tx/match acc
+              (reduced nil)))
+          #{}
+          tx-events))
+
+(defn- tx-events->future-valid-times [tx-events ^Date tx-time]
+  (for [[op _ & args] tx-events
+        vt (case op
+             :crux.tx/put (rest args)
+             :crux.tx/delete args
+             :crux.tx/cas (drop 2 args)
+             [])
+        :when (and vt (pos? (compare vt tx-time)))]
+    vt))
+
+(defn- query-delta-results [query-engine ^ConformedQuery conformed-query valid-time tx-time args]
+  (-> (api/db query-engine valid-time tx-time)
+      (assoc :result-cache nil)
+      (conformed-query-result (with-query-args conformed-query args))))
+
+(defn- incremental-query-delta [query-engine ^ConformedQuery conformed-query entity-vars
+                                eids results ^Date prev-tx-time ^Date tx-time]
+  (let [find-vars (mapv second (:find (.q-conformed conformed-query)))
+        affected (fn [tx-time]
+                   (->> (for [e entity-vars]
+                          (query-delta-results query-engine conformed-query tx-time tx-time
+                                               (vec (for [eid eids] {e eid}))))
+                        (reduce into #{})))
+        new-affected (affected tx-time)
+        candidates (-> (set/intersection (affected prev-tx-time) results)
+                       (set/difference new-affected))
+        survivors (when (seq candidates)
+                    (query-delta-results query-engine conformed-query tx-time tx-time
+                                         (vec (distinct (for [tuple candidates]
+                                                          (zipmap find-vars tuple))))))]
+    {:added (set/difference new-affected results)
+     :removed (set/difference candidates survivors)}))
+
+(defn- next-query-delta [{:keys [index-store] :as query-engine} ^ConformedQuery conformed-query entity-vars
+                         {:keys [results pending-valid-times] ^Date prev-tx-time :tx-time}
+                         {::tx/keys [submitted-tx], ::txe/keys [tx-events], :keys [committed?]}]
+  (let [{::tx/keys [^Date tx-time]} submitted-tx
+        eids (when (and entity-vars
+                        committed?
+                        prev-tx-time
+                        (pos? (compare tx-time prev-tx-time))
+                        pending-valid-times
+                        (every? #(pos? (compare % tx-time)) pending-valid-times))
+               (touched-entities (api/db query-engine tx-time prev-tx-time) tx-events))
+        {:keys [added removed]} (cond
+                                  (or (not committed?) (= #{} eids)) {:added #{}, :removed #{}}
+                                  (nil? eids) (let [new-results (query-delta-results query-engine conformed-query tx-time tx-time nil)]
+                                                  {:added (set/difference new-results results)
+                                                   :removed (set/difference results new-results)})
+                                  :else (incremental-query-delta query-engine conformed-query entity-vars
+                                                                 eids results prev-tx-time tx-time))
+        max-valid-time (when (some (comp #{:crux.tx/fn} first) tx-events)
+                         (read-max-valid-time index-store))]
+    {:tx-id (::tx/tx-id submitted-tx)
+     :tx-time tx-time
+     :added added
+     :removed removed
+     :results (-> results (set/difference removed) (set/union added))
+     ;; nil when valid times past the latest transaction are unknown
+     :pending-valid-times (when (and pending-valid-times (not= ::unknown max-valid-time))
+                            (cond-> (into (sorted-set)
+                                          (filter #(pos? (compare % tx-time)))
+                                          (concat pending-valid-times
+                                                  (when committed?
+                                                    (tx-events->future-valid-times tx-events tx-time))))
+                              (and max-valid-time (pos? (compare max-valid-time tx-time))) (conj max-valid-time)))}))
+
+(defn listen-query-deltas
+  "Calls f with the tuples query adds to and removes from its results as
+  of each transaction indexed from now on, starting with its current
+  results. Returns an AutoCloseable that stops the subscription."
+  ^java.lang.AutoCloseable [{:keys [bus index-store conform-cache] :as query-engine} query f]
+  (let [conformed-query (normalize-and-conform-query conform-cache query)
+        q (.q-normalized conformed-query)]
+    (when-let [unsupported (seq (filter #(some? (get q %)) [:order-by :limit :offset :args]))]
+      (throw (IllegalArgumentException. (str "Query deltas don't support: " (cio/pr-edn-str (vec unsupported))))))
+    (let [entity-vars (incremental-entity-vars (.q-conformed conformed-query))
+          executor (Executors/newSingleThreadExecutor (cio/thread-factory "crux-query-delta"))
+          !state (atom nil)
+          send-delta (fn [{:keys [tx-id tx-time added removed]}]
+                       (when (or (seq added) (seq removed))
+                         (f {:crux/event-type :crux/query-delta
+                             ::tx/tx-id tx-id
+                             ::tx/tx-time tx-time
+                             :added added
+                             :removed removed})))
+          ;; runs on the executor, before the first event it handles
+          ensure-baseline (fn []
+                            (when-not @!state
+                              (let [{::tx/keys [tx-id tx-time]} (db/latest-completed-tx index-store)
+                                    max-valid-time (read-max-valid-time index-store)
+                                    results (if tx-time
+                                              (query-delta-results query-engine conformed-query tx-time tx-time nil)
+                                              #{})]
+                                (reset! !state {:tx-id tx-id
+                                                :tx-time tx-time
+                                                :results results
+                                                :pending-valid-times (when-not (= ::unknown max-valid-time)
+                                                                       (cond-> (sorted-set)
+                                                                         (and max-valid-time tx-time (pos? (compare max-valid-time tx-time)))
+                                                                         (conj max-valid-time)))})
+                                (send-delta {:tx-id tx-id, :tx-time tx-time, :added results, :removed #{}}))))
+          handle-error (fn [^Exception e]
+                         (log/error e "Error computing query delta:"))
+          listener (bus/listen bus {:crux/event-types #{::tx/indexed-tx}
+                                    ::bus/executor executor}
+                               (fn [{::tx/keys [submitted-tx] :as event}]
+                                 (try
+                                   (ensure-baseline)
+                                   (let [{:keys [tx-id] :as state} @!state]
+                                     (when (or (nil? tx-id) (> (long (::tx/tx-id submitted-tx)) (long tx-id)))
+                                       (send-delta (reset! !state (next-query-delta query-engine conformed-query entity-vars state event)))))
+                                   (catch Exception e
+                                     (handle-error e)))))]
+      (.submit executor ^Runnable (fn []
+                                    (try
+                                      (ensure-baseline)
+                                      (catch Exception e
+                                        (handle-error e)))))
+      (reify java.lang.AutoCloseable
+        (close [_]
+          (.close ^Closeable listener)
+          (doto executor
+            (.shutdown)
+            (.awaitTermination 60000 TimeUnit/MILLISECONDS)))))))
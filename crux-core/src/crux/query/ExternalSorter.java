@@ -0,0 +1,543 @@
+package crux.query;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+
+// External sort of rows by an order preserving binary encoding of
+// their sort keys. Rows are kept on heap as they are, and sorted with
+// the row comparator, until their estimated size crosses the memory
+// budget. From then on they are appended as length prefixed records
+// of [key length, payload length, key, frozen row] into off-heap run
+// buffers, which are sorted and spilled to disk, on the executor if
+// given, once full. Spilled runs are merged back with a k-way merge
+// over memory mapped run files.
+//
+// Keys of nil, booleans, integers, doubles, dates, chars and strings
+// compare in their encoded form, matching clojure.core/compare. Any
+// other key, or keys of different types, fall back to comparing the
+// thawed rows with the row comparator.
+//
+// Given a memory account, the bytes of records buffered in runs not
+// yet written are reserved from it in chunks, a run being spilled
+// early once the account is exhausted.
+
+public final class ExternalSorter implements Closeable {
+    private static final byte NIL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte DATE = 4;
+    private static final byte CHAR = 5;
+    private static final byte STRING = 6;
+    private static final byte OTHER = 7;
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int INITIAL_RUN_CAPACITY = 64 * 1024;
+    private static final int INITIAL_RUN_ROWS = 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long RESERVATION_BYTES = 1024 * 1024;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int OBJECT_BYTES = 16;
+
+    private final int[] keyColumns;
+    private final boolean[] descending;
+    private final Comparator<Object> rowComparator;
+    private final IFn freeze;
+    private final IFn thaw;
+    private final long memoryBudget;
+    private final int runCapacity;
+    private final int maxPendingRuns;
+    private final ExecutorService executor;
+    private final MemoryAccount account;
+
+    private final ExpandableArrayBuffer keyBuffer = new ExpandableArrayBuffer(64);
+    private final Deque<Future<Run>> pendingRuns = new ArrayDeque<>();
+    private final Deque<Run> freeRuns = new ArrayDeque<>();
+    private final List<File> runFiles = new ArrayList<>();
+    private List<Object> heapRows = new ArrayList<>();
+    private long heapBytes;
+    private Run run;
+    private boolean closed;
+    private long buffered;
+    private long reserved;
+
+    @SuppressWarnings("unchecked")
+    public ExternalSorter(final int[] keyColumns, final boolean[] descending, final Comparator<?> rowComparator,
+                          final IFn freeze, final IFn thaw, final long memoryBudget, final int parallelism,
+                          final ExecutorService executor, final MemoryAccount account) {
+        if (keyColumns.length != descending.length) {
+            throw new IllegalArgumentException("Expected a direction per key column");
+        }
+        this.keyColumns = keyColumns;
+        this.descending = descending;
+        this.rowComparator = (Comparator<Object>) rowComparator;
+        this.freeze = freeze;
+        this.thaw = thaw;
+        this.memoryBudget = memoryBudget;
+        final int runs = executor == null ? 1 : Math.max(1, parallelism);
+        this.runCapacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(INITIAL_RUN_CAPACITY, memoryBudget / runs));
+        this.maxPendingRuns = runs - 1;
+        this.executor = runs > 1 ? executor : null;
+        this.account = account;
+    }
+
+    private static final class Run {
+        private final ExpandableDirectByteBuffer buffer = new ExpandableDirectByteBuffer(INITIAL_RUN_CAPACITY);
+        private int[] offsets = new int[INITIAL_RUN_ROWS];
+        private int size;
+        private int position;
+        private File file;
+
+        private void add(final DirectBuffer key, final int keyLength, final byte[] payload) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = position;
+            buffer.putInt(position, keyLength);
+            buffer.putInt(position + Integer.BYTES, payload.length);
+            buffer.putBytes(position + HEADER_SIZE, key, 0, keyLength);
+            buffer.putBytes(position + HEADER_SIZE + keyLength, payload);
+            position += HEADER_SIZE + keyLength + payload.length;
+        }
+
+        private void clear() {
+            size = 0;
+            position = 0;
+            file = null;
+        }
+    }
+
+    public void add(final Object row) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Sorter is closed");
+        }
+        if (heapRows != null) {
+            final long size = estimateSize(row);
+            if (heapBytes + size <= memoryBudget && tryReserve(size)) {
+                heapRows.add(row);
+                heapBytes += size;
+                return;
+            }
+            moveHeapRowsOffHeap();
+        }
+        addOffHeap(row);
+    }
+
+    private void moveHeapRowsOffHeap() throws InterruptedException {
+        final List<Object> rows = heapRows;
+        heapRows = null;
+        buffered -= heapBytes;
+        heapBytes = 0;
+        releaseUnbuffered();
+        run = new Run();
+        for (final Object row : rows) {
+            addOffHeap(row);
+        }
+    }
+
+    private void addOffHeap(final Object row) throws InterruptedException {
+        int keyLength = 0;
+        for (final int column : keyColumns) {
+            keyLength = putKey(keyBuffer, keyLength, RT.nth(row, column));
+        }
+        final byte[] payload = (byte[]) freeze.invoke(row);
+        final int recordLength = HEADER_SIZE + keyLength + payload.length;
+        if (run.size > 0 && (long) run.position + recordLength > runCapacity) {
+            spill();
+        }
+        if (!tryReserve(recordLength)) {
+            if (run.size > 0) {
+                spill();
+            }
+            awaitPendingRuns(0);
+            if (!tryReserve(recordLength)) {
+                account.reserve(recordLength, "sort");
+                buffered += recordLength;
+                reserved += recordLength;
+            }
+        }
+        run.add(keyBuffer, keyLength, payload);
+    }
+
+    public Iterator<Object> iterator() throws InterruptedException {
+        if (heapRows != null) {
+            heapRows.sort(rowComparator);
+            return heapRows.iterator();
+        }
+        if (runFiles.isEmpty() && pendingRuns.isEmpty()) {
+            final Run run = this.run;
+            sort(run);
+            return new RunIterator(run);
+        }
+        if (run.size > 0) {
+            spill();
+        }
+        awaitPendingRuns(0);
+        try {
+            return new MergeIterator(runFiles);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        heapRows = null;
+        heapBytes = 0;
+        for (final Future<Run> pendingRun : pendingRuns) {
+            pendingRun.cancel(true);
+        }
+        pendingRuns.clear();
+        freeRuns.clear();
+        for (final File file : runFiles) {
+            file.delete();
+        }
+        runFiles.clear();
+        buffered = 0;
+        releaseUnbuffered();
+    }
+
+    private boolean tryReserve(final long bytes) {
+        if (account == null) {
+            return true;
+        }
+        final long required = buffered + bytes - reserved;
+        if (required > 0) {
+            final long chunk = Math.max(required, RESERVATION_BYTES);
+            if (account.tryReserve(chunk)) {
+                reserved += chunk;
+            } else if (account.tryReserve(required)) {
+                reserved += required;
+            } else {
+                return false;
+            }
+        }
+        buffered += bytes;
+        return true;
+    }
+
+    private void releaseUnbuffered() {
+        if (account != null && reserved > buffered) {
+            account.release(reserved - buffered);
+            reserved = buffered;
+        }
+    }
+
+    private void written(final Run run) {
+        buffered -= run.position;
+        releaseUnbuffered();
+        run.clear();
+    }
+
+    private void spill() throws InterruptedException {
+        awaitPendingRuns(maxPendingRuns);
+        final Run run = this.run;
+        try {
+            run.file = File.createTempFile("crux-external-sort", ".run");
+            run.file.deleteOnExit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        runFiles.add(run.file);
+        if (executor == null) {
+            sortAndWrite(run);
+            written(run);
+            this.run = run;
+        } else {
+            pendingRuns.add(executor.submit(() -> sortAndWrite(run)));
+            this.run = freeRuns.isEmpty() ? new Run() : freeRuns.poll();
+        }
+    }
+
+    private void awaitPendingRuns(final int maxPending) throws InterruptedException {
+        while (pendingRuns.size() > maxPending) {
+            final Run run;
+            try {
+                run = pendingRuns.peek().get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+            pendingRuns.poll();
+            written(run);
+            freeRuns.add(run);
+        }
+    }
+
+    private Run sortAndWrite(final Run run) {
+        sort(run);
+        final byte[] bytes = new byte[WRITE_BUFFER_SIZE];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(run.file), WRITE_BUFFER_SIZE)) {
+            for (int i = 0; i < run.size; i++) {
+                final int offset = run.offsets[i];
+                int remaining = recordLength(run.buffer, offset);
+                for (int position = offset; remaining > 0; ) {
+                    final int length = Math.min(remaining, bytes.length);
+                    run.buffer.getBytes(position, bytes, 0, length);
+                    out.write(bytes, 0, length);
+                    position += length;
+                    remaining -= length;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return run;
+    }
+
+    // Rough on heap size of a row, only used to decide when to move the
+    // rows off heap.
+    private static long estimateSize(final Object x) {
+        if (x == null || x instanceof Boolean || x instanceof Keyword || x instanceof Symbol) {
+            return REFERENCE_BYTES;
+        } else if (x instanceof String) {
+            return REFERENCE_BYTES + OBJECT_BYTES + Integer.BYTES + ((String) x).length() * (long) Character.BYTES;
+        } else if (x instanceof Collection) {
+            long size = REFERENCE_BYTES + OBJECT_BYTES;
+            for (final Object y : (Collection<?>) x) {
+                size += estimateSize(y);
+            }
+            return size;
+        } else if (x instanceof Map) {
+            long size = REFERENCE_BYTES + OBJECT_BYTES;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) x).entrySet()) {
+                size += REFERENCE_BYTES + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        } else {
+            return REFERENCE_BYTES + OBJECT_BYTES + Long.BYTES;
+        }
+    }
+
+    private static int recordLength(final DirectBuffer buffer, final int offset) {
+        return HEADER_SIZE + buffer.getInt(offset) + buffer.getInt(offset + Integer.BYTES);
+    }
+
+    private Object thawRecord(final DirectBuffer buffer, final int offset) {
+        final byte[] payload = new byte[buffer.getInt(offset + Integer.BYTES)];
+        buffer.getBytes(offset + HEADER_SIZE + buffer.getInt(offset), payload);
+        return thaw.invoke(payload);
+    }
+
+    private void sort(final Run run) {
+        final int[] offsets = run.offsets;
+        mergeSort(run.buffer, Arrays.copyOf(offsets, run.size), offsets, 0, run.size);
+    }
+
+    private void mergeSort(final DirectBuffer buffer, final int[] from, final int[] to, final int start, final int end) {
+        if (end - start < 2) {
+            return;
+        }
+        final int mid = (start + end) >>> 1;
+        mergeSort(buffer, to, from, start, mid);
+        mergeSort(buffer, to, from, mid, end);
+        for (int i = start, l = start, r = mid; i < end; i++) {
+            if (r == end || (l < mid && compareRecords(buffer, from[l], buffer, from[r]) <= 0)) {
+                to[i] = from[l++];
+            } else {
+                to[i] = from[r++];
+            }
+        }
+    }
+
+    private static int putKey(final MutableDirectBuffer to, int position, final Object value) {
+        if (value == null) {
+            to.putByte(position, NIL);
+            return position + Byte.BYTES;
+        } else if (value instanceof Boolean) {
+            to.putByte(position, BOOLEAN);
+            to.putByte(position + Byte.BYTES, (byte) ((Boolean) value ? 1 : 0));
+            return position + 2 * Byte.BYTES;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            to.putByte(position, LONG);
+            to.putLong(position + Byte.BYTES, ((Number) value).longValue() ^ Long.MIN_VALUE, ByteOrder.BIG_ENDIAN);
+            return position + Byte.BYTES + Long.BYTES;
+        } else if ((value instanceof Double || value instanceof Float) && !Double.isNaN(((Number) value).doubleValue())) {
+            final double d = ((Number) value).doubleValue();
+            long l = Double.doubleToLongBits(d == 0.0 ? 0.0 : d);
+            l ^= (l >> (Long.SIZE - 1)) | Long.MIN_VALUE;
+            to.putByte(position, DOUBLE);
+            to.putLong(position + Byte.BYTES, l, ByteOrder.BIG_ENDIAN);
+            return position + Byte.BYTES + Long.BYTES;
+        } else if (value.getClass() == Date.class) {
+            to.putByte(position, DATE);
+            to.putLong(position + Byte.BYTES, ((Date) value).getTime() ^ Long.MIN_VALUE, ByteOrder.BIG_ENDIAN);
+            return position + Byte.BYTES + Long.BYTES;
+        } else if (value instanceof Character) {
+            to.putByte(position, CHAR);
+            to.putChar(position + Byte.BYTES, (Character) value, ByteOrder.BIG_ENDIAN);
+            return position + Byte.BYTES + Character.BYTES;
+        } else if (value instanceof String) {
+            final String s = (String) value;
+            final int length = s.length();
+            to.putByte(position, STRING);
+            to.putInt(position + Byte.BYTES, length);
+            position += Byte.BYTES + Integer.BYTES;
+            for (int i = 0; i < length; i++, position += Character.BYTES) {
+                to.putChar(position, s.charAt(i), ByteOrder.BIG_ENDIAN);
+            }
+            return position;
+        } else {
+            to.putByte(position, OTHER);
+            return position + Byte.BYTES;
+        }
+    }
+
+    private int compareRecords(final DirectBuffer a, final int aOffset, final DirectBuffer b, final int bOffset) {
+        int aPosition = aOffset + HEADER_SIZE;
+        int bPosition = bOffset + HEADER_SIZE;
+        for (int column = 0; column < keyColumns.length; column++) {
+            final byte aType = a.getByte(aPosition++);
+            final byte bType = b.getByte(bPosition++);
+            int diff = 0;
+            if (aType != bType) {
+                if (aType != NIL && bType != NIL) {
+                    return rowComparator.compare(thawRecord(a, aOffset), thawRecord(b, bOffset));
+                }
+                diff = aType == NIL ? -1 : 1;
+            } else {
+                switch (aType) {
+                    case NIL:
+                        break;
+                    case BOOLEAN:
+                        diff = Byte.compare(a.getByte(aPosition), b.getByte(bPosition));
+                        aPosition += Byte.BYTES;
+                        bPosition += Byte.BYTES;
+                        break;
+                    case LONG:
+                    case DOUBLE:
+                    case DATE:
+                        diff = Long.compareUnsigned(a.getLong(aPosition, ByteOrder.BIG_ENDIAN),
+                                                    b.getLong(bPosition, ByteOrder.BIG_ENDIAN));
+                        aPosition += Long.BYTES;
+                        bPosition += Long.BYTES;
+                        break;
+                    case CHAR:
+                        diff = Character.compare(a.getChar(aPosition, ByteOrder.BIG_ENDIAN),
+                                                 b.getChar(bPosition, ByteOrder.BIG_ENDIAN));
+                        aPosition += Character.BYTES;
+                        bPosition += Character.BYTES;
+                        break;
+                    case STRING: {
+                        final int aLength = a.getInt(aPosition);
+                        final int bLength = b.getInt(bPosition);
+                        aPosition += Integer.BYTES;
+                        bPosition += Integer.BYTES;
+                        final int length = Math.min(aLength, bLength);
+                        for (int i = 0; i < length && diff == 0; i++) {
+                            diff = Character.compare(a.getChar(aPosition + i * Character.BYTES, ByteOrder.BIG_ENDIAN),
+                                                     b.getChar(bPosition + i * Character.BYTES, ByteOrder.BIG_ENDIAN));
+                        }
+                        if (diff == 0) {
+                            diff = Integer.compare(aLength, bLength);
+                        }
+                        aPosition += aLength * Character.BYTES;
+                        bPosition += bLength * Character.BYTES;
+                        break;
+                    }
+                    default:
+                        return rowComparator.compare(thawRecord(a, aOffset), thawRecord(b, bOffset));
+                }
+            }
+            if (diff != 0) {
+                return descending[column] ? -diff : diff;
+            }
+        }
+        return 0;
+    }
+
+    private final class RunIterator implements Iterator<Object> {
+        private final Run run;
+        private int idx;
+
+        private RunIterator(final Run run) {
+            this.run = run;
+        }
+
+        public boolean hasNext() {
+            return idx < run.size;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return thawRecord(run.buffer, run.offsets[idx++]);
+        }
+    }
+
+    private static final class RunCursor {
+        private final DirectBuffer buffer;
+        private int position;
+
+        private RunCursor(final DirectBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final class MergeIterator implements Iterator<Object> {
+        private final PriorityQueue<RunCursor> queue;
+
+        private MergeIterator(final List<File> files) throws IOException {
+            queue = new PriorityQueue<>(Math.max(1, files.size()),
+                                        (a, b) -> compareRecords(a.buffer, a.position, b.buffer, b.position));
+            for (final File file : files) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    final FileChannel channel = raf.getChannel();
+                    if (channel.size() > 0) {
+                        queue.add(new RunCursor(new UnsafeBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))));
+                    }
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public Object next() {
+            final RunCursor cursor = queue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            final Object row = thawRecord(cursor.buffer, cursor.position);
+            cursor.position += recordLength(cursor.buffer, cursor.position);
+            if (cursor.position < cursor.buffer.capacity()) {
+                queue.add(cursor);
+            }
+            return row;
+        }
+    }
+}
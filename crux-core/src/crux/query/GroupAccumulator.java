@@ -0,0 +1,184 @@
+package crux.query;
+
+import java.util.Arrays;
+import clojure.lang.IFn;
+import clojure.lang.Numbers;
+import clojure.lang.Ratio;
+import clojure.lang.Util;
+
+// Per group aggregate state for hash aggregation, indexed by the dense
+// group ids of GroupHashTable. The built-in count, sum, avg, min and
+// max keep their state in primitive or flat arrays, other aggregates
+// delegate to their aggregate fn.
+
+public abstract class GroupAccumulator {
+    protected static final int INITIAL_CAPACITY = 1024;
+
+    public abstract void add(int group, Object value);
+
+    public abstract Object result(int group);
+
+    public abstract long memoryUsage();
+
+    protected static int grow(final int capacity, final int group) {
+        int newCapacity = capacity;
+        while (group >= newCapacity) {
+            newCapacity *= 2;
+        }
+        return newCapacity;
+    }
+
+    public static GroupAccumulator count() {
+        return new Count();
+    }
+
+    public static GroupAccumulator sum() {
+        return new Sum();
+    }
+
+    public static GroupAccumulator avg() {
+        return new Avg();
+    }
+
+    public static GroupAccumulator min() {
+        return new MinMax(1);
+    }
+
+    public static GroupAccumulator max() {
+        return new MinMax(-1);
+    }
+
+    public static GroupAccumulator fn(final IFn aggregateFn) {
+        return new Fn(aggregateFn);
+    }
+
+    private static final class Count extends GroupAccumulator {
+        private long[] counts = new long[INITIAL_CAPACITY];
+
+        public void add(final int group, final Object value) {
+            if (group >= counts.length) {
+                counts = Arrays.copyOf(counts, grow(counts.length, group));
+            }
+            counts[group]++;
+        }
+
+        public Object result(final int group) {
+            return counts[group];
+        }
+
+        public long memoryUsage() {
+            return (long) counts.length * Long.BYTES;
+        }
+    }
+
+    // Sums longs unboxed, and switches a group over to boxed
+    // arithmetic the first time it sees any other kind of number or
+    // overflows, which then fails like clojure.core/+ would.
+    private static final class Sum extends GroupAccumulator {
+        private long[] sums = new long[INITIAL_CAPACITY];
+        private Object[] boxedSums = new Object[INITIAL_CAPACITY];
+
+        public void add(final int group, final Object value) {
+            if (group >= sums.length) {
+                final int capacity = grow(sums.length, group);
+                sums = Arrays.copyOf(sums, capacity);
+                boxedSums = Arrays.copyOf(boxedSums, capacity);
+            }
+            final Object boxedSum = boxedSums[group];
+            if (boxedSum == null && value instanceof Long) {
+                try {
+                    sums[group] = Math.addExact(sums[group], (Long) value);
+                    return;
+                } catch (ArithmeticException ignore) {
+                }
+            }
+            boxedSums[group] = Numbers.add(boxedSum == null ? (Object) sums[group] : boxedSum, value);
+        }
+
+        public Object result(final int group) {
+            final Object boxedSum = boxedSums[group];
+            return boxedSum == null ? (Object) sums[group] : boxedSum;
+        }
+
+        public long memoryUsage() {
+            return (long) sums.length * (Long.BYTES + Long.BYTES);
+        }
+    }
+
+    private static final class Avg extends GroupAccumulator {
+        private final Count count = new Count();
+        private final Sum sum = new Sum();
+
+        public void add(final int group, final Object value) {
+            count.add(group, value);
+            sum.add(group, value);
+        }
+
+        public Object result(final int group) {
+            final Object avg = Numbers.divide(sum.result(group), count.result(group));
+            return avg instanceof Ratio ? (Object) ((Ratio) avg).doubleValue() : avg;
+        }
+
+        public long memoryUsage() {
+            return count.memoryUsage() + sum.memoryUsage();
+        }
+    }
+
+    private static final class MinMax extends GroupAccumulator {
+        private final int sign;
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        private MinMax(final int sign) {
+            this.sign = sign;
+        }
+
+        public void add(final int group, final Object value) {
+            if (group >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, group));
+            }
+            final Object acc = values[group];
+            if (acc == null || acc == Boolean.FALSE || Util.compare(acc, value) * sign > 0) {
+                values[group] = value;
+            }
+        }
+
+        public Object result(final int group) {
+            return values[group];
+        }
+
+        public long memoryUsage() {
+            return (long) values.length * Long.BYTES;
+        }
+    }
+
+    private static final class Fn extends GroupAccumulator {
+        private final IFn aggregateFn;
+        private Object[] accs = new Object[INITIAL_CAPACITY];
+        private boolean[] initialized = new boolean[INITIAL_CAPACITY];
+
+        private Fn(final IFn aggregateFn) {
+            this.aggregateFn = aggregateFn;
+        }
+
+        public void add(final int group, final Object value) {
+            if (group >= accs.length) {
+                final int capacity = grow(accs.length, group);
+                accs = Arrays.copyOf(accs, capacity);
+                initialized = Arrays.copyOf(initialized, capacity);
+            }
+            if (!initialized[group]) {
+                accs[group] = aggregateFn.invoke();
+                initialized[group] = true;
+            }
+            accs[group] = aggregateFn.invoke(accs[group], value);
+        }
+
+        public Object result(final int group) {
+            return aggregateFn.invoke(accs[group]);
+        }
+
+        public long memoryUsage() {
+            return (long) accs.length * (Long.BYTES + 1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package crux.query;
+
+import java.util.Arrays;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+import crux.ByteUtils;
+
+// Open addressing hash table from encoded group keys to dense group
+// ids, using linear probing. Keys are copied into a single expandable
+// arena, so the table holds no per group objects.
+
+public final class GroupHashTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double LOAD_FACTOR = 0.5;
+
+    private final ExpandableDirectByteBuffer arena = new ExpandableDirectByteBuffer(INITIAL_CAPACITY * Long.BYTES);
+    private final UnsafeBuffer keyView = new UnsafeBuffer(0, 0);
+    private int arenaPosition;
+
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private int[] keyOffsets = new int[INITIAL_CAPACITY];
+    private int[] keyLengths = new int[INITIAL_CAPACITY];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public long memoryUsage() {
+        return arena.capacity()
+            + (long) slots.length * Integer.BYTES
+            + (long) hashes.length * (Long.BYTES + 2 * Integer.BYTES);
+    }
+
+    public long hash(final int group) {
+        return hashes[group];
+    }
+
+    private boolean keyEquals(final int group, final DirectBuffer key, final long hash) {
+        if (hashes[group] != hash || keyLengths[group] != key.capacity()) {
+            return false;
+        }
+        keyView.wrap(arena, keyOffsets[group], keyLengths[group]);
+        return ByteUtils.equalBuffers(keyView, key);
+    }
+
+    private int slotFor(final long hash) {
+        return (int) hash & (slots.length - 1);
+    }
+
+    public int find(final DirectBuffer key, final long hash) {
+        final int mask = slots.length - 1;
+        for (int slot = slotFor(hash); ; slot = (slot + 1) & mask) {
+            final int group = slots[slot] - 1;
+            if (group < 0) {
+                return -1;
+            }
+            if (keyEquals(group, key, hash)) {
+                return group;
+            }
+        }
+    }
+
+    public int insert(final DirectBuffer key, final long hash) {
+        if (size + 1 > slots.length * LOAD_FACTOR) {
+            rehash();
+        }
+        if (size == hashes.length) {
+            final int capacity = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+            keyLengths = Arrays.copyOf(keyLengths, capacity);
+        }
+        final int group = size++;
+        final int length = key.capacity();
+        arena.putBytes(arenaPosition, key, 0, length);
+        hashes[group] = hash;
+        keyOffsets[group] = arenaPosition;
+        keyLengths[group] = length;
+        arenaPosition += length;
+
+        final int mask = slots.length - 1;
+        int slot = slotFor(hash);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = group + 1;
+        return group;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        final int mask = slots.length - 1;
+        for (int group = 0; group < size; group++) {
+            int slot = slotFor(hashes[group]);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group + 1;
+        }
+    }
+}
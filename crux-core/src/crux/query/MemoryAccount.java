@@ -0,0 +1,117 @@
+package crux.query;
+
+import java.util.concurrent.atomic.AtomicLong;
+import crux.api.QueryMemoryBudgetExceededException;
+
+// Bytes held by the materializing operators of a query, checked
+// against the query's own limit and the node-wide account shared by
+// all queries. Reservations that would exceed either limit fail, the
+// operator either spilling or aborting the query.
+//
+// Bytes are reserved from the parent before they're added here, and
+// removed here before they're released to it, so releaseAll can
+// return exactly what's held. It also closes the account: operators
+// cleaned up after the query can't release their bytes a second time,
+// nor reserve new ones.
+
+public final class MemoryAccount {
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final MemoryAccount parent;
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    public MemoryAccount(final MemoryAccount parent, final long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Expected a positive limit, got: " + limit);
+        }
+        this.parent = parent;
+        this.limit = limit;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    public long used() {
+        final long used = this.used.get();
+        return used == CLOSED ? 0 : used;
+    }
+
+    public long available() {
+        final long available = limit - used();
+        return parent == null ? available : Math.min(available, parent.available());
+    }
+
+    public long peak() {
+        return peak.get();
+    }
+
+    public boolean tryReserve(final long bytes) {
+        if (bytes <= 0) {
+            release(-bytes);
+            return true;
+        }
+        final long current = used.get();
+        if (current == CLOSED) {
+            throw new IllegalStateException("Memory account is closed");
+        }
+        if (current + bytes > limit) {
+            return false;
+        }
+        if (parent != null && !parent.tryReserve(bytes)) {
+            return false;
+        }
+        while (true) {
+            final long oldUsed = used.get();
+            final long newUsed = oldUsed + bytes;
+            if (oldUsed == CLOSED || newUsed > limit) {
+                if (parent != null) {
+                    parent.release(bytes);
+                }
+                if (oldUsed == CLOSED) {
+                    throw new IllegalStateException("Memory account is closed");
+                }
+                return false;
+            }
+            if (used.compareAndSet(oldUsed, newUsed)) {
+                peak.accumulateAndGet(newUsed, Math::max);
+                return true;
+            }
+        }
+    }
+
+    public void reserve(final long bytes, final String operator) {
+        if (!tryReserve(bytes)) {
+            final long used = used();
+            throw new QueryMemoryBudgetExceededException("Query memory budget exceeded by " + operator
+                                                         + ", requested: " + bytes + " bytes, used: " + used + " bytes",
+                                                         bytes, used);
+        }
+    }
+
+    public void release(final long bytes) {
+        if (bytes > 0) {
+            while (true) {
+                final long oldUsed = used.get();
+                if (oldUsed == CLOSED) {
+                    return;
+                }
+                if (used.compareAndSet(oldUsed, oldUsed - bytes)) {
+                    break;
+                }
+            }
+            if (parent != null) {
+                parent.release(bytes);
+            }
+        }
+    }
+
+    public void releaseAll() {
+        final long bytes = used.getAndSet(CLOSED);
+        if (parent != null && bytes > 0) {
+            parent.release(bytes);
+        }
+    }
+}
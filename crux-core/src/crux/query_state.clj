@@ -12,9 +12,10 @@
    :finished-at (.finishedAt query-state)
    :error (when-let [error (.error query-state)]
             {:type (.errorClass error)
-             :message (.errorMessage error)})})
+             :message (.errorMessage error)})
+   :peak-memory-usage (.peakMemoryUsage query-state)})
 
-(defn ->QueryState [{:keys [query-id started-at finished-at status error query] :as query-state}]
+(defn ->QueryState [{:keys [query-id started-at finished-at status error query peak-memory-usage] :as query-state}]
   (QueryState. query-id
                started-at
                finished-at
@@ -25,4 +26,5 @@
                query
                (when error
                  (let [{:keys [type message]} error]
-                   (QueryState$QueryError. type message)))))
+                   (QueryState$QueryError. type message)))
+               (some-> peak-memory-usage long)))
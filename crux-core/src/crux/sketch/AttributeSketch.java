@@ -0,0 +1,69 @@
+package crux.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.agrona.DirectBuffer;
+import crux.ByteUtils;
+
+public final class AttributeSketch {
+    private static final int COUNTERS_OFFSET = 2 * HyperLogLog.REGISTERS;
+    private static final int SIZE = COUNTERS_OFFSET + CountMinSketch.DEPTH * CountMinSketch.WIDTH * Integer.BYTES;
+
+    public final HyperLogLog values;
+    public final HyperLogLog entities;
+    public final CountMinSketch frequencies;
+
+    public AttributeSketch() {
+        this(new HyperLogLog(), new HyperLogLog(), new CountMinSketch());
+    }
+
+    private AttributeSketch(final HyperLogLog values, final HyperLogLog entities, final CountMinSketch frequencies) {
+        this.values = values;
+        this.entities = entities;
+        this.frequencies = frequencies;
+    }
+
+    public void add(final DirectBuffer eid, final DirectBuffer value) {
+        final long valueHash = ByteUtils.hash64(value);
+        values.add(valueHash);
+        entities.add(ByteUtils.hash64(eid));
+        frequencies.add(valueHash, 1);
+    }
+
+    public void merge(final AttributeSketch other) {
+        values.merge(other.values);
+        entities.merge(other.entities);
+        frequencies.merge(other.frequencies);
+    }
+
+    public double distinctValues() {
+        return values.estimate();
+    }
+
+    public double distinctEntities() {
+        return entities.estimate();
+    }
+
+    public long valueFrequency(final DirectBuffer value) {
+        return frequencies.estimate(ByteUtils.hash64(value));
+    }
+
+    public byte[] toByteArray() {
+        final ByteBuffer bb = ByteBuffer.allocate(SIZE);
+        bb.put(values.registers);
+        bb.put(entities.registers);
+        bb.asIntBuffer().put(frequencies.counters);
+        return bb.array();
+    }
+
+    public static AttributeSketch fromByteArray(final byte[] bytes) {
+        if (bytes.length != SIZE) {
+            throw new IllegalArgumentException("Expected " + SIZE + " bytes, got: " + bytes.length);
+        }
+        final int[] counters = new int[CountMinSketch.DEPTH * CountMinSketch.WIDTH];
+        ByteBuffer.wrap(bytes, COUNTERS_OFFSET, SIZE - COUNTERS_OFFSET).slice().asIntBuffer().get(counters);
+        return new AttributeSketch(new HyperLogLog(Arrays.copyOfRange(bytes, 0, HyperLogLog.REGISTERS)),
+                                   new HyperLogLog(Arrays.copyOfRange(bytes, HyperLogLog.REGISTERS, COUNTERS_OFFSET)),
+                                   new CountMinSketch(counters));
+    }
+}
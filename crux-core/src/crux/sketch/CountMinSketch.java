@@ -0,0 +1,72 @@
+package crux.sketch;
+
+import java.util.Arrays;
+
+// https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch
+//
+// Estimates use the count-mean-min correction, subtracting the
+// expected collision noise of each row, which keeps rare values from
+// being estimated as frequent on large attributes.
+
+public final class CountMinSketch {
+    public static final int DEPTH = 4;
+    public static final int WIDTH = 256;
+
+    final int[] counters;
+
+    public CountMinSketch() {
+        this(new int[DEPTH * WIDTH]);
+    }
+
+    public CountMinSketch(final int[] counters) {
+        if (counters.length != DEPTH * WIDTH) {
+            throw new IllegalArgumentException("Expected " + (DEPTH * WIDTH) + " counters, got: " + counters.length);
+        }
+        this.counters = counters;
+    }
+
+    private static int index(final long hash, final int row) {
+        final int h = (int) hash + row * (int) (hash >>> 32);
+        return row * WIDTH + (h & Integer.MAX_VALUE) % WIDTH;
+    }
+
+    private static int saturatedAdd(final int a, final long b) {
+        return (int) Math.min(Integer.MAX_VALUE, a + b);
+    }
+
+    public void add(final long hash, final long count) {
+        for (int row = 0; row < DEPTH; row++) {
+            final int idx = index(hash, row);
+            counters[idx] = saturatedAdd(counters[idx], count);
+        }
+    }
+
+    public void merge(final CountMinSketch other) {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = saturatedAdd(counters[i], other.counters[i]);
+        }
+    }
+
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            total += counters[i];
+        }
+        return total;
+    }
+
+    public long estimate(final long hash) {
+        final long total = total();
+        final long[] estimates = new long[DEPTH];
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            final long counter = counters[index(hash, row)];
+            final long noise = (total - counter) / (WIDTH - 1);
+            estimates[row] = counter - noise;
+            min = Math.min(min, counter);
+        }
+        Arrays.sort(estimates);
+        final long median = (estimates[(DEPTH - 1) / 2] + estimates[DEPTH / 2]) / 2;
+        return Math.max(0, Math.min(min, median));
+    }
+}
@@ -6,6 +6,7 @@
             [crux.codec :as c]
             [crux.db :as db]
             [crux.io :as cio]
+            [crux.lru :as lru]
             [crux.tx.conform :as txc]
             [crux.tx.event :as txe]
             [crux.api :as api]
@@ -14,10 +15,12 @@
             [crux.mem-kv :as mem-kv]
             [crux.system :as sys])
   (:import crux.codec.EntityTx
+           crux.sketch.AttributeSketch
            java.io.Closeable
            java.time.Duration
            [java.util.concurrent Executors ExecutorService TimeoutException TimeUnit]
-           java.util.Date))
+           java.util.Date
+           org.agrona.DirectBuffer))
 
 (set! *unchecked-math* :warn-on-boxed)
 
@@ -217,18 +220,57 @@
 (defmethod index-tx-event :default [[op & _] tx tx-ingester]
   (throw (IllegalArgumentException. (str "Unknown tx-op: " op))))
 
-(defn- update-stats [{:keys [index-store ^ExecutorService stats-executor] :as tx-ingester} docs-stats]
-  (let [stats-fn ^Runnable #(->> (apply merge-with + (db/read-index-meta index-store :crux/attribute-stats) docs-stats)
-                                 (db/store-index-meta index-store :crux/attribute-stats))]
-    (if stats-executor
-      (.submit stats-executor stats-fn)
-      (stats-fn))))
-
 (defn- doc-predicate-stats [doc]
   (->> (for [[k v] doc]
          [k (count (c/vectorize-value v))])
        (into {})))
 
+(defn- docs-attribute-sketches [docs]
+  (->> (for [doc docs
+             :let [eid-value-buffer (c/->value-buffer (:crux.db/id doc))]
+             [a v] doc
+             v (c/vectorize-value v)
+             :let [^DirectBuffer value-buffer (c/->value-buffer v)]
+             :when (pos? (.capacity value-buffer))]
+         [a eid-value-buffer value-buffer])
+       (reduce (fn [acc [a eid-value-buffer value-buffer]]
+                 (let [sketch (or (get acc a) (AttributeSketch.))]
+                   (.add ^AttributeSketch sketch eid-value-buffer value-buffer)
+                   (assoc acc a sketch)))
+               {})))
+
+;; Sketches are stored per attribute, so only the attributes touched by
+;; the docs are read and rewritten.
+(defn- update-attribute-sketches [index-store docs]
+  (doseq [[a ^AttributeSketch sketch] (docs-attribute-sketches docs)
+          :let [k {:crux/attribute-sketch a}]]
+    (when-let [stored-sketch (db/read-index-meta index-store k)]
+      (.merge sketch (AttributeSketch/fromByteArray stored-sketch)))
+    (db/store-index-meta index-store k (.toByteArray sketch))))
+
+(defn- update-stats [{:keys [index-store ^ExecutorService stats-executor] :as tx-ingester} docs]
+  (let [stats-fn ^Runnable #(do (->> (apply merge-with + (db/read-index-meta index-store :crux/attribute-stats) (map doc-predicate-stats docs))
+                                     (db/store-index-meta index-store :crux/attribute-stats))
+                                (update-attribute-sketches index-store docs))]
+    (if stats-executor
+      (.submit stats-executor stats-fn)
+      (stats-fn))))
+
+;; Only tracked from the first transaction of an index on, as older
+;; indexes can't tell their latest valid time without a full scan.
+(defn- update-max-valid-time [index-store etxs]
+  (let [max-valid-time (db/read-index-meta index-store :crux/max-valid-time
+                                           (when (db/latest-completed-tx index-store)
+                                             ::unknown))]
+    (when-not (= ::unknown max-valid-time)
+      (->> etxs
+           (reduce (fn [^Date max-valid-time ^EntityTx etx]
+                     (if (and max-valid-time (not (pos? (compare (.vt etx) max-valid-time))))
+                       max-valid-time
+                       (.vt etx)))
+                   max-valid-time)
+           (db/store-index-meta index-store :crux/max-valid-time)))))
+
 (defn index-docs [{:keys [bus index-store] :as tx-ingester} docs]
   (when-let [missing-ids (seq (remove :crux.db/id (vals docs)))]
     (throw (IllegalArgumentException.
@@ -238,8 +280,7 @@
     (bus/send bus {:crux/event-type ::indexing-docs, :doc-ids (set (keys docs))})
 
     (let [{:keys [bytes-indexed indexed-docs]} (db/index-docs index-store docs)]
-      (update-stats tx-ingester (->> (vals indexed-docs)
-                                     (map doc-predicate-stats)))
+      (update-stats tx-ingester (vals indexed-docs))
 
       (bus/send bus {:crux/event-type ::indexed-docs,
                      :doc-ids (set (keys docs))
@@ -257,7 +298,7 @@
 (defrecord InFlightTx [tx !state !tx-events !error
                        forked-index-store forked-document-store
                        query-engine index-store document-store bus
-                       stats-executor]
+                       stats-executor entity-cache]
   db/DocumentStore
   (submit-docs [_ docs]
     (db/submit-docs forked-document-store docs))
@@ -326,17 +367,25 @@
     (when (:fork-at tx)
       (throw (IllegalStateException. "Can't commit from fork.")))
 
-    (when-let [evict-eids (not-empty (fork/newly-evicted-eids forked-index-store))]
-      (let [{:keys [tombstones]} (db/unindex-eids index-store evict-eids)]
-        (db/submit-docs document-store tombstones)))
+    (let [evict-eids (not-empty (fork/newly-evicted-eids forked-index-store))
+          latest-tx-time (::tx-time (db/latest-completed-tx index-store))
+          index! (fn []
+                   (when evict-eids
+                     (let [{:keys [tombstones]} (db/unindex-eids index-store evict-eids)]
+                       (db/submit-docs document-store tombstones)))
 
-    (when-let [new-docs (fork/new-docs forked-document-store)]
-      (db/index-docs index-store new-docs)
-      (update-stats this (map doc-predicate-stats (vals new-docs)))
+                   (when-let [new-docs (fork/new-docs forked-document-store)]
+                     (db/index-docs index-store new-docs)
+                     (update-stats this (vals new-docs))
 
-      (db/submit-docs document-store new-docs))
+                     (db/submit-docs document-store new-docs))
 
-    (db/index-entity-txs index-store tx (fork/new-etxs forked-index-store))
+                   (update-max-valid-time index-store (fork/new-etxs forked-index-store))
+                   (db/index-entity-txs index-store tx (fork/new-etxs forked-index-store)))]
+      ;; entities resolved at the latest tx-time change if this transaction shares it
+      (if (and entity-cache (or evict-eids (= latest-tx-time (::tx-time tx))))
+        (lru/invalidate-generation entity-cache index!)
+        (index!)))
 
     (bus/send bus {:crux/event-type ::indexed-tx,
                    ::submitted-tx tx,
@@ -355,6 +404,7 @@
                     (->> (fork/new-docs forked-document-store)
                          (into {} (filter (comp :crux.db.fn/failed? val)))))
 
+    (update-max-valid-time index-store [])
     (db/mark-tx-as-failed index-store tx)
 
     (bus/send bus {:crux/event-type ::indexed-tx,
@@ -377,9 +427,12 @@
                     forked-document-store
                     (assoc query-engine
                            :index-store forked-index-store
-                           :document-store forked-document-store)
+                           :document-store forked-document-store
+                           :result-cache nil
+                           :entity-cache nil)
                     index-store document-store bus
-                    stats-executor)))
+                    stats-executor
+                    (:entity-cache query-engine))))
   (ingester-error [_] @!error)
 
   Closeable
@@ -130,6 +130,20 @@
                        :http-opts {:method :get}
                        :->jwt-token ->jwt-token}))
 
+  (entities [this eids]
+    (->> (for [eid (distinct eids)
+               :let [doc (.entity this eid)]
+               :when doc]
+           [eid doc])
+         (into {})))
+
+  (entityTxs [this eids]
+    (->> (for [eid (distinct eids)
+               :let [entity-tx (.entityTx this eid)]
+               :when entity-tx]
+           [eid entity-tx])
+         (into {})))
+
   (query [this q]
     (with-open [res (.openQuery this q)]
       (if (:order-by q)
@@ -145,6 +159,9 @@
       (cio/->cursor #(.close ^Closeable in)
                     (edn-list->lazy-seq in))))
 
+  (prepareQuery [this q]
+    (q/prepare-query q))
+
   (entityHistory [this eid opts]
     (with-open [history (.openEntityHistory this eid opts)]
       (vec (iterator-seq history))))
@@ -11,9 +11,11 @@
            java.nio.ByteBuffer
            (java.nio.file Files Path)
            java.nio.file.attribute.FileAttribute
+           java.util.concurrent.atomic.AtomicBoolean
            java.util.function.ToIntFunction
-           (org.rocksdb Checkpoint CompressionType FlushOptions LRUCache
-                        Options ReadOptions RocksDB RocksIterator
+           clojure.lang.MapEntry
+           (org.rocksdb Checkpoint CompressionType EnvOptions FlushOptions IngestExternalFileOptions LRUCache
+                        MutableColumnFamilyOptions Options ReadOptions RocksDB RocksIterator SstFileWriter
                         WriteBatch WriteOptions Statistics StatsLevel)))
 
 (set! *unchecked-math* :warn-on-boxed)
@@ -81,7 +83,68 @@
 (def ^:private default-block-cache-size (* 128 1024 1024))
 (def ^:private default-block-size (* 16 1024))
 
-(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, db-dir]
+;; In bulk load mode, batches of at least the bulk load batch size are
+;; sorted and written to an SST file which is then ingested directly,
+;; skipping the memtable, the WAL and the compactions of random order
+;; writes. The keys are visible to reads as soon as the file has been
+;; ingested. RocksDB places each file in the bottommost level its keys
+;; don't overlap, otherwise in L0.
+;;
+;; Auto compactions are disabled in this mode, which also lifts the L0
+;; write stalls. As the ingester reads its own writes, after each store,
+;; ingested or written through the memtable, they're turned back on
+;; while L0 holds as many files as would slow down writes, and off
+;; again once it's back under the compaction trigger.
+;;
+;; NOTE: the ingester stores the kvs of each transaction on their own,
+;; so typical transactions stay under the bulk load batch size and go
+;; through the memtable, only deferring compactions. This isn't a bulk
+;; loader sorting the kvs of the whole transaction log into SST files,
+;; which would have to serve the ingester's reads of its own writes.
+
+(defn- set-auto-compactions! [^RocksDB db enabled?]
+  (.setOptions db (.getDefaultColumnFamily db) (-> (MutableColumnFamilyOptions/builder)
+                                                   (.setDisableAutoCompactions (not enabled?))
+                                                   (.build))))
+
+(defn- level-0-files ^long [^RocksDB db]
+  (Long/parseLong (.getProperty db "rocksdb.num-files-at-level0")))
+
+(defn- ingest-kvs [^RocksDB db ^Options options ^Path bulk-load-dir kvs]
+  (let [sst-file (Files/createTempFile (Files/createDirectories bulk-load-dir (make-array FileAttribute 0))
+                                       "bulk-load" ".sst"
+                                       (make-array FileAttribute 0))]
+    (try
+      (with-open [env-options (EnvOptions.)
+                  writer (SstFileWriter. env-options options)]
+        (.open writer (str sst-file))
+        (doseq [[k v] (into (sorted-map-by mem/buffer-comparator)
+                            (map (fn [[k v]]
+                                   (MapEntry/create (mem/as-buffer k) (mem/as-buffer v))))
+                            kvs)]
+          (.put writer ^bytes (mem/->on-heap k) ^bytes (mem/->on-heap v)))
+        (.finish writer))
+      (with-open [ingest-options (doto (IngestExternalFileOptions.)
+                                   (.setMoveFiles true))]
+        (.ingestExternalFile db [(str sst-file)] ingest-options))
+      (finally
+        (Files/deleteIfExists sst-file)))))
+
+(defn- update-bulk-load-auto-compactions! [^RocksDB db ^Options options ^AtomicBoolean auto-compactions?]
+  (let [level-0-files (level-0-files db)]
+    (cond
+      (and (not (.get auto-compactions?))
+           (>= level-0-files (.level0SlowdownWritesTrigger options)))
+      (do (set-auto-compactions! db true)
+          (.set auto-compactions? true))
+
+      (and (.get auto-compactions?)
+           (< level-0-files (.level0FileNumCompactionTrigger options)))
+      (do (set-auto-compactions! db false)
+          (.set auto-compactions? false)))))
+
+(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, db-dir, bulk-load-batch-size
+                    ^AtomicBoolean bulk-load-auto-compactions?]
   kv/KvStore
   (new-snapshot [_]
     (let [snapshot (.getSnapshot db)]
@@ -91,10 +154,14 @@
                          snapshot)))
 
   (store [_ kvs]
-    (with-open [wb (WriteBatch.)]
-      (doseq [[k v] kvs]
-        (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v)))
-      (.write db write-options wb)))
+    (if (and bulk-load-batch-size (<= (long bulk-load-batch-size) (long (bounded-count bulk-load-batch-size kvs))))
+      (ingest-kvs db options (.resolve ^Path db-dir "bulk-load") kvs)
+      (with-open [wb (WriteBatch.)]
+        (doseq [[k v] kvs]
+          (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v)))
+        (.write db write-options wb)))
+    (when bulk-load-batch-size
+      (update-bulk-load-auto-compactions! db options bulk-load-auto-compactions?)))
 
   (delete [_ ks]
     (with-open [wb (WriteBatch.)]
@@ -138,8 +205,14 @@
                                            :spec #(instance? Options %)}
                               :disable-wal? {:doc "Disable Write Ahead Log"
                                              :default false
-                                             :spec ::sys/boolean}}}
-  [{:keys [db-dir sync? disable-wal? metrics db-options] :as options}]
+                                             :spec ::sys/boolean}
+                              :bulk-load? {:doc "Tune for initial imports: auto compactions are deferred, and batches of at least the bulk load batch size are ingested as sorted SST files. Not a bulk loader of the whole transaction log, as transactions are still stored one at a time. Compact, or restart without it, once the import is done"
+                                           :default false
+                                           :spec ::sys/boolean}
+                              :bulk-load-batch-size {:doc "Number of entries from which a batch is ingested as an SST file in bulk load mode"
+                                                     :default 65536
+                                                     :spec ::sys/pos-int}}}
+  [{:keys [db-dir sync? disable-wal? metrics db-options bulk-load? bulk-load-batch-size] :as options}]
 
   (RocksDB/loadLibrary)
   (let [stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
@@ -147,6 +220,9 @@
                (cond-> metrics (.setStatistics stats))
                (.setCompressionType CompressionType/LZ4_COMPRESSION)
                (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
+               ;; NOTE: unlike Options/prepareForBulkLoad, this leaves
+               ;; num_levels and the other db-options as they are.
+               (cond-> bulk-load? (.setDisableAutoCompactions true))
                (.setCreateIfMissing true))
 
         db (try
@@ -161,6 +237,8 @@
                    :options opts
                    :db db
                    :metrics metrics
+                   :bulk-load-batch-size (when bulk-load? bulk-load-batch-size)
+                   :bulk-load-auto-compactions? (AtomicBoolean.)
                    :write-options (doto (WriteOptions.)
                                     (.setSync (boolean sync?))
                                     (.setDisableWAL (boolean disable-wal?)))})))
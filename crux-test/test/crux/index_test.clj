@@ -3,7 +3,8 @@
             [crux.codec :as c]
             [crux.db :as db]
             [crux.index :as idx])
-  (:import clojure.lang.Box))
+  (:import clojure.lang.Box
+           crux.index.JoinKeysBatch))
 
 (t/deftest test-can-perform-unary-join
   (let [a-idx (idx/new-relation-virtual-index [[0]
@@ -94,6 +95,46 @@
                  (for [join-keys result]
                    (mapv c/decode-value-buffer join-keys))))))))
 
+(t/deftest test-n-ary-join-emits-batches
+  (let [r (idx/new-relation-virtual-index [[1 3]
+                                           [1 4]
+                                           [1 5]
+                                           [3 5]]
+                                          2
+                                          c/->value-buffer)
+        s (idx/new-relation-virtual-index [[3 4]
+                                           [3 5]
+                                           [4 6]
+                                           [4 8]
+                                           [4 9]
+                                           [5 2]]
+                                          2
+                                          c/->value-buffer)
+        t (idx/new-relation-virtual-index [[1 4]
+                                           [1 5]
+                                           [1 6]
+                                           [1 8]
+                                           [1 9]
+                                           [1 2]
+                                           [3 2]]
+                                          2
+                                          c/->value-buffer)
+        batches (-> (mapv idx/new-unary-join-virtual-index [[r t] [r s] [s t]])
+                    (idx/new-n-ary-join-layered-virtual-index)
+                    (idx/layered-idx->batch-seq 3))]
+    (t/is (= [3 3 1] (map #(.size ^JoinKeysBatch %) batches)))
+    (t/is (= [[1 3 4]
+              [1 3 5]
+              [1 4 6]
+              [1 4 8]
+              [1 4 9]
+              [1 5 2]
+              [3 5 2]]
+             (for [^JoinKeysBatch batch batches
+                   n (range (.size batch))]
+               (vec (for [^objects column (.columns batch)]
+                      (c/decode-value-buffer (aget column n)))))))))
+
 (t/deftest test-range-predicates
   (let [r (idx/new-relation-virtual-index [[1]
                                            [2]
@@ -8,9 +8,14 @@
             [crux.fixtures :as f]
             [crux.fixtures.kv :as fkv]
             [crux.kv.index-store :as kvi]
+            [crux.lru :as lru]
+            [crux.memory :as mem]
             [crux.tx :as tx])
   (:import crux.codec.EntityTx
-           java.util.Date))
+           crux.kv.BlockedBloomFilter
+           java.util.Date
+           java.util.concurrent.ConcurrentHashMap
+           org.agrona.DirectBuffer))
 
 (def ^:dynamic *index-store*)
 
@@ -18,7 +23,8 @@
 
 (defmacro with-fresh-index-store [& body]
   `(fkv/with-kv-store [kv-store#]
-     (binding [*index-store* (kvi/->KvIndexStore kv-store#)]
+     (binding [*index-store* (kvi/->kv-index-store {:kv-store kv-store#
+                                                    :eid-bloom-filter-size 65536})]
        ~@body)))
 
 ;; NOTE: These tests does not go via the TxLog, but writes its own
@@ -193,3 +199,116 @@
       ;; :bar 0062cdb7020ff920e5aa642c3d4066950dd1f01f4d
       ;; :foo 000beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33
       (t/is (nil? (db/read-index-meta *index-store* :foo))))))
+
+(t/deftest test-eid-bloom-filter-is-stored-and-rebuilt
+  (fkv/with-kv-store [kv-store]
+    (let [etx (fn [eid tx-id]
+                (c/->EntityTx (c/new-id eid) #inst "2020" #inst "2020" tx-id (c/new-id (keyword (str tx-id)))))
+          ->index-store #(kvi/->kv-index-store {:kv-store kv-store
+                                                :eid-bloom-filter-size 65536})
+          entity-as-of (fn [index-store eid]
+                         (with-open [index-snapshot (db/open-index-snapshot index-store)]
+                           (db/entity-as-of-resolver index-snapshot eid #inst "2021" #inst "2021")))
+          might-contain? #(.mightContain ^BlockedBloomFilter (:eid-bloom-filter %1) (c/->id-buffer %2) c/value-type-id-size)]
+      (let [index-store (->index-store)]
+        (db/index-entity-txs index-store {::tx/tx-id 0, ::tx/tx-time #inst "2020"} [(etx :ivan 0)])
+        (t/is (might-contain? index-store :ivan))
+        (t/is (entity-as-of index-store :ivan))
+        (t/is (nil? (entity-as-of index-store :petr))))
+
+      (t/testing "stored pages are loaded"
+        (let [index-store (->index-store)]
+          (t/is (might-contain? index-store :ivan))
+          (t/is (entity-as-of index-store :ivan))))
+
+      (t/testing "filters behind the index are rebuilt"
+        (db/index-entity-txs (kvi/->KvIndexStore kv-store nil (ConcurrentHashMap.) nil false) {::tx/tx-id 1, ::tx/tx-time #inst "2020"} [(etx :petr 1)])
+        (let [index-store (->index-store)]
+          (t/is (might-contain? index-store :ivan))
+          (t/is (might-contain? index-store :petr))
+          (t/is (entity-as-of index-store :petr)))))))
+
+(t/deftest test-decoded-values-are-cached-between-snapshots
+  (fkv/with-kv-store [kv-store]
+    (let [{:keys [value-cache] :as index-store} (kvi/->kv-index-store {:kv-store kv-store
+                                                                        :value-cache-size 1024})
+          doc {:crux.db/id :ivan :team :red :address {:city "London"}}
+          cached (fn [v]
+                   (lru/get-in-generation value-cache (lru/current-generation value-cache) (c/->value-buffer v)))
+          decode (fn [index-snapshot v]
+                   (db/decode-value index-snapshot (c/->value-buffer v)))
+          decode-latest (fn [v]
+                          (with-open [index-snapshot (db/open-index-snapshot index-store)]
+                            (decode index-snapshot v)))]
+      (db/index-docs index-store {(c/new-id doc) doc})
+      (t/is (= #{:ivan :red {:city "London"}}
+               (set (map cached [:ivan :red {:city "London"}]))))
+      (t/is (= :red (decode-latest :red)))
+      (t/is (= {:city "London"} (decode-latest {:city "London"})))
+
+      (t/testing "evicted values are dropped from the cache"
+        (with-open [earlier-snapshot (db/open-index-snapshot index-store)]
+          (db/unindex-eids index-store [:ivan])
+          (t/is (nil? (cached :red)))
+
+          (t/testing "and not cached again by snapshots from before the eviction"
+            (t/is (= :red (decode earlier-snapshot :red)))
+            (t/is (nil? (cached :red)))))
+
+        (t/is (nil? (decode-latest :red)))))))
+
+(t/deftest test-attributes-are-dictionary-encoded
+  (fkv/with-kv-store [kv-store]
+    (let [doc {:crux.db/id :ivan :name "Ivan" :team :red}
+          attr-ids (fn [{:keys [attr-dictionary]}]
+                     (into {} (for [a (keys doc)]
+                                [a (some-> (get attr-dictionary (c/->id-buffer a)) (c/->id-buffer) (mem/buffer->hex))])))
+          av (fn [index-store a]
+               (with-open [index-snapshot (db/open-index-snapshot index-store)]
+                 (->> (db/av index-snapshot a nil nil)
+                      (mapv #(db/decode-value index-snapshot %)))))
+          index-store (kvi/->kv-index-store {:kv-store kv-store})]
+      (db/index-docs index-store {(c/new-id doc) doc})
+      (t/is (= #{1} (set (for [[_ ^DirectBuffer attr-id] (:attr-dictionary index-store)]
+                           (.capacity attr-id)))))
+      (t/is (= ["Ivan"] (av index-store :name)))
+      (t/is (empty? (av index-store :age)))
+
+      (t/testing "the dictionary is loaded on restart"
+        (let [restarted-index-store (kvi/->kv-index-store {:kv-store kv-store})]
+          (t/is (= (attr-ids index-store) (attr-ids restarted-index-store)))
+          (t/is (= [:red] (av restarted-index-store :team))))))))
+
+(t/deftest test-current-state-index-matches-bitemporal-lookups
+  (fkv/with-kv-store [kv-store]
+    (fkv/with-kv-store [current-state-kv-store]
+      (let [index-store (kvi/->kv-index-store {:kv-store kv-store})
+            current-state-index-store (kvi/->kv-index-store {:kv-store current-state-kv-store
+                                                             :current-state-index? true})
+            txs [[#inst "2020-01" [[:a #inst "2020-01" :a1] [:b #inst "2020-06" :b1]]]
+                 [#inst "2020-02" [[:a #inst "2019-12" :a2] [:b #inst "2020-02" nil]]]
+                 [#inst "2020-03" [[:a #inst "2020-03" :a3] [:a #inst "2020-05" :a4]]]
+                 [#inst "2020-04" [[:a #inst "2020-04" nil]]]]
+            times [#inst "2019-11" #inst "2019-12" #inst "2019-12-15" #inst "2020-01" #inst "2020-01-15"
+                   #inst "2020-02" #inst "2020-02-15" #inst "2020-03" #inst "2020-03-15" #inst "2020-04"
+                   #inst "2020-04-15" #inst "2020-05" #inst "2020-05-15" #inst "2020-06" #inst "2020-07"]
+            lookups (fn [index-store]
+                      (with-open [index-snapshot (db/open-index-snapshot index-store)]
+                        (vec (for [eid [:a :b :c]
+                                   vt times
+                                   tt times]
+                               [(db/entity-as-of index-snapshot eid vt tt)
+                                (some-> (db/entity-as-of-resolver index-snapshot eid vt tt) (c/new-id))]))))
+            !current-state-hits (atom 0)
+            current-state-value @#'kvi/current-state-value]
+        (doseq [[[tx-time etxs] tx-id] (map vector txs (range))
+                index-store [index-store current-state-index-store]]
+          (db/index-entity-txs index-store
+                               {::tx/tx-id tx-id, ::tx/tx-time tx-time}
+                               (for [[eid vt content] etxs]
+                                 (c/->EntityTx (c/new-id eid) vt tx-time tx-id (c/new-id content)))))
+        (with-redefs [kvi/current-state-value (fn [& args]
+                                                (doto (apply current-state-value args)
+                                                  (some-> (do (swap! !current-state-hits inc)))))]
+          (t/is (= (lookups index-store) (lookups current-state-index-store))))
+        (t/is (pos? @!current-state-hits))))))
@@ -156,6 +156,36 @@
       (t/is (= "is" (String. ^bytes (value kv-store (.getBytes "key-with-a-long-prefix-2")))))
       (t/is (= "awesome" (String. ^bytes (value kv-store (.getBytes "key-with-a-long-prefix-3"))))))))
 
+(t/deftest test-bulk-load-stores-large-batches
+  (binding [fkv/*kv-opts* (merge fkv/*kv-opts* {:bulk-load? true, :bulk-load-batch-size 16})]
+    (fkv/with-kv-store [kv-store]
+      (let [ingest-kvs-var (requiring-resolve 'crux.rocksdb/ingest-kvs)
+            ingest-kvs @ingest-kvs-var
+            !ingested (atom 0)
+            expected-ingests (fn [n]
+                               (if (= "crux.rocksdb.RocksKv" (kv/kv-name kv-store))
+                                 n
+                                 0))]
+        (with-redefs-fn {ingest-kvs-var (fn [& args]
+                                          (swap! !ingested inc)
+                                          (apply ingest-kvs args))}
+          (fn []
+            (kv/store kv-store (concat (for [n (shuffle (range 64))]
+                                         [(long->bytes n) (long->bytes n)])
+                                       [[(long->bytes 1) (.getBytes "Crux")]]))
+            (t/is (= (expected-ingests 1) @!ingested))
+            (t/is (= 63 (bytes->long (value kv-store (long->bytes 63)))))
+            (t/is (= "Crux" (String. ^bytes (value kv-store (long->bytes 1)))))
+            (t/is (= (range 64) (for [[k] (seek-and-iterate kv-store (constantly true) (long->bytes 0))]
+                                  (bytes->long k))))
+
+            (t/testing "smaller batches and deletes are written as usual"
+              (kv/store kv-store [[(long->bytes 64) (long->bytes 64)]])
+              (kv/delete kv-store [(long->bytes 63)])
+              (t/is (= (expected-ingests 1) @!ingested))
+              (t/is (= 64 (bytes->long (value kv-store (long->bytes 64)))))
+              (t/is (nil? (value kv-store (long->bytes 63)))))))))))
+
 (t/deftest test-sanity-check-can-start-with-sync-enabled
   (binding [fkv/*kv-opts* (merge fkv/*kv-opts* {:sync? true})]
     (fkv/with-kv-store [kv-store]
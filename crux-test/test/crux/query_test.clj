@@ -4,15 +4,20 @@
             [clojure.walk :as w]
             [clojure.test :as t]
             [crux.api :as api]
+            [crux.bus :as bus]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.fixtures :as fix :refer [*api*]]
             [crux.query :as q]
             [crux.index :as idx]
+            [crux.io :as cio]
             [clojure.java.io :as io]
+            [clojure.string :as string]
             [edn-query-language.core :as eql])
-  (:import java.util.UUID
-           java.util.concurrent.TimeoutException))
+  (:import crux.api.QueryMemoryBudgetExceededException
+           crux.query.MemoryAccount
+           java.util.UUID
+           [java.util.concurrent LinkedBlockingQueue TimeoutException TimeUnit]))
 
 (t/use-fixtures :each fix/with-node)
 
@@ -2735,6 +2740,48 @@
                                                    [:blue 7] [:blue 8]]) [[?color ?x]]]]))
                #{[:red [5 4 3 2 1]] [:blue [8 7]]})))))
 
+(t/deftest test-aggregates-spill-to-disk-over-memory-budget
+  (with-open [node (api/start-node {:crux/query-engine {:operator-memory-budget 1}})]
+    (fix/submit+await-tx node (for [n (range 200)]
+                                [:crux.tx/put {:crux.db/id (keyword (str "order-" n))
+                                               :customer (mod n 37)
+                                               :amount (if (even? n) n (+ n 0.5))}]))
+    (let [orders (for [n (range 200)]
+                   {:customer (mod n 37)
+                    :amount (if (even? n) n (+ n 0.5))})]
+      (t/is (= (set (for [[customer orders] (group-by :customer orders)
+                          :let [amounts (map :amount orders)]]
+                      [customer
+                       (count amounts)
+                       (reduce + amounts)
+                       (reduce min amounts)
+                       (reduce max amounts)
+                       (double (/ (reduce + amounts) (count amounts)))]))
+               (set (api/q (api/db node) '{:find [c (count a) (sum a) (min a) (max a) (avg a)]
+                                           :where [[e :customer c]
+                                                   [e :amount a]]})))))))
+
+(t/deftest test-sum-aggregate-overflow-throws
+  (t/is (thrown? ArithmeticException
+                 (api/q (api/db *api*)
+                        '{:find [(sum x)]
+                          :where [[(identity [9223372036854775807 1]) [x ...]]]}))))
+
+(t/deftest test-aggregate-overrides-replace-built-in-accumulators
+  (let [sum-method (get-method q/aggregate 'sum)]
+    (try
+      (defmethod q/aggregate 'sum [_]
+        (fn
+          ([] 0)
+          ([acc] (- acc))
+          ([acc x] (+ acc x))))
+      (t/is (= #{[-3]}
+               (api/q (api/db *api*)
+                      '{:find [(sum x)]
+                        :where [[(identity [1 2]) [x ...]]]})))
+      (finally
+        (.addMethod ^clojure.lang.MultiFn q/aggregate 'sum sum-method)))))
+
 (t/deftest test-can-bind-function-returns-to-falsy
   ;; Datomic does allow binding falsy values, DataScript doesn't
   ;; see "Returning nil from function filters out tuple from result"
@@ -3275,6 +3322,502 @@
                                                           [x :val v]]
                                                   :order-by [[v :desc]]}))))
 
+(t/deftest test-prepared-query
+  (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan" :age 30}
+                        {:crux.db/id :petr :name "Petr" :age 16}])
+  (let [db (api/db *api*)
+        prepared (api/prepare-q db '{:find [e]
+                                     :where [[e :name name]
+                                             (adult? e)]
+                                     :rules [[(adult? e)
+                                              [e :age a]
+                                              [(>= a 18)]]]})]
+    (t/is (= #{[:ivan]} (api/q db prepared [{'name "Ivan"}])))
+    (t/is (= #{} (api/q db prepared [{'name "Petr"}])))
+
+    (with-open [res (api/open-q db prepared [{'name "Ivan"}])]
+      (t/is (= [[:ivan]] (iterator-seq res))))
+
+    (t/testing "runs against later dbs"
+      (fix/transact! *api* [{:crux.db/id :petr :name "Petr" :age 18}])
+      (t/is (= #{} (api/q db prepared [{'name "Petr"}])))
+      (t/is (= #{[:petr]} (api/q (api/db *api*) prepared [{'name "Petr"}]))))
+
+    (t/testing "runs against speculative dbs"
+      (t/is (= #{[:oleg]} (api/q (api/with-tx db [[:crux.tx/put {:crux.db/id :oleg :name "Oleg" :age 50}]])
+                                 prepared [{'name "Oleg"}])))))
+
+  (t/testing "args can be given to unprepared queries"
+    (t/is (= #{[:ivan]} (api/q (api/db *api*) '{:find [e]
+                                                :where [[e :name name]]}
+                               [{'name "Ivan"}])))))
+
+(t/deftest test-result-cache-invalidated-by-touched-attributes
+  (with-open [node (api/start-node {:crux/query-engine {:result-cache-size 16}})]
+    (let [submit+await-invalidation (fn [tx-ops]
+                                      (let [{:crux.tx/keys [tx-time] :as tx} (fix/submit+await-tx node tx-ops)]
+                                        (while (not= tx-time (-> node :query-engine :result-cache :!state deref :tx-time))
+                                          (Thread/sleep 10))
+                                        tx))
+          names-q '{:find [n]
+                    :where [[e :name n]]}
+          tx (submit+await-invalidation [[:crux.tx/put {:crux.db/id :ivan :name "Ivan" :age 30}]])
+          names (api/q (api/db node) names-q)]
+      (t/is (= #{["Ivan"]} names))
+      (t/is (identical? names (api/q (api/db node) names-q)))
+
+      (t/testing "kept by transactions not touching the attributes read"
+        (submit+await-invalidation [[:crux.tx/put {:crux.db/id :petr :age 40}]])
+        (t/is (identical? names (api/q (api/db node) names-q))))
+
+      (t/testing "invalidated by attributes removed from an entity"
+        (submit+await-invalidation [[:crux.tx/put {:crux.db/id :ivan :age 31}]])
+        (t/is (= #{} (api/q (api/db node) names-q))))
+
+      (t/testing "earlier transaction times still see their results"
+        (t/is (= #{["Ivan"]} (api/q (api/db node nil (:crux.tx/tx-time tx)) names-q))))
+
+      (t/testing "not cached when calling non-deterministic functions"
+        (let [q '{:find [a r]
+                  :where [[e :age a]
+                          [(rand) r]]}]
+          (t/is (not= (api/q (api/db node) q)
+                      (api/q (api/db node) q))))))))
+
+(t/deftest test-order-by-spills-sorted-runs-over-memory-budget
+  (with-open [node (api/start-node {:crux/query-engine {:query-parallelism 2}})]
+    (fix/submit+await-tx node (for [n (shuffle (range 3000))]
+                                [:crux.tx/put {:crux.db/id (keyword (str "order-" n))
+                                               :customer (str "customer-" (mod n 101))
+                                               :amount (if (even? n) n (+ n 0.5))}]))
+    (let [orders (for [n (range 3000)]
+                   [(str "customer-" (mod n 101))
+                    (if (even? n) n (+ n 0.5))])]
+      (t/is (= (sort-by identity (fn [[c1 a1] [c2 a2]]
+                                   (if (= c1 c2)
+                                     (compare a2 a1)
+                                     (compare c1 c2)))
+                        orders)
+               (api/q (api/db node) '{:find [c a]
+                                      :where [[e :customer c]
+                                              [e :amount a]]
+                                      :order-by [[c :asc] [a :desc]]
+                                      :operator-memory-budget 1}))))))
+
+(t/deftest test-compiled-predicates
+  (let [docs (for [n (range 20)]
+               [:crux.tx/put {:crux.db/id (keyword (str "item-" n))
+                              :n n
+                              :parity (if (even? n) :even :odd)
+                              :tag (keyword (str "tag-" (mod n 3)))
+                              :alias (keyword (str "tag-" (mod n 2)))}])
+        queries '[{:find [e]
+                   :where [[e :n n]
+                           [(odd? n)]
+                           [(* n 2) m]
+                           [(< 20 m)]]}
+                  {:find [e s]
+                   :where [[e :n n]
+                           [(str "n-" n) s]
+                           [(clojure.string/ends-with? s "7")]]}
+                  {:find [e]
+                   :where [[e :tag t]
+                           [e :alias a]
+                           [(== t a)]]}
+                  {:find [e]
+                   :where [[e :tag t]
+                           [e :alias a]
+                           [(!= t a)]]}
+                  {:find [e]
+                   :where [[e :tag t]
+                           [(== t #{:tag-0 :tag-1})]
+                           [(!= t :tag-1)]]}
+                  {:find [e m]
+                   :where [[e :n n]
+                           [(< n 5)]
+                           [(+ n 10 1) m]]}]]
+    (fix/submit+await-tx docs)
+    (with-open [node (api/start-node {:crux/query-engine {:compile-predicates? true}})]
+      (fix/submit+await-tx node docs)
+      (let [eval-constraint-fn @#'q/eval-constraint-fn
+            !compiled (atom 0)]
+        (with-redefs [q/eval-constraint-fn (fn [& args]
+                                             (swap! !compiled inc)
+                                             (apply eval-constraint-fn args))]
+          (doseq [q queries]
+            (t/is (= (api/q (api/db *api*) q)
+                     (api/q (api/db node) q))
+                  (pr-str q))))
+        (t/is (= 9 @!compiled)))
+      (t/is (seq (api/q (api/db node) (first queries)))))))
+
+(t/deftest test-string-prefix-predicates-seek-index
+  (let [long-name (apply str "Iv" (repeat 200 "a"))]
+    (fix/submit+await-tx (concat (for [n (range 100)]
+                                   [:crux.tx/put {:crux.db/id (keyword (str "person-" n))
+                                                  :name (str "Name " n)}])
+                                 [[:crux.tx/put {:crux.db/id :ivan :name "Ivan"}]
+                                  [:crux.tx/put {:crux.db/id :ivana :name "Ivana"}]
+                                  [:crux.tx/put {:crux.db/id :iv :name long-name}]
+                                  [:crux.tx/put {:crux.db/id :other-long :name (apply str "Zz" (repeat 200 "a"))}]
+                                  [:crux.tx/put {:crux.db/id :id-name :name :Iv}]]))
+    (let [{:keys [result profile]} (q/profile-query (api/db *api*)
+                                                    '{:find [e]
+                                                      :where [[e :name n]
+                                                              [(clojure.string/starts-with? n "Iv")]]})]
+      (t/is (= #{[:ivan] [:ivana] [:iv]} result))
+      (t/is (< 0
+               (->> (:clauses profile)
+                    (keep #(get-in % [:vars 'n :values]))
+                    (reduce +))
+               10)))
+
+    (t/testing "prefix longer than indexed strings"
+      (t/is (= #{[long-name]}
+               (api/q (api/db *api*) {:find '[n]
+                                      :where [['e :name 'n]
+                                              [(list 'clojure.string/starts-with? 'n (subs long-name 0 150))]]}))))
+
+    (t/testing "combined with other range constraints"
+      (t/is (= #{["Ivana"]}
+               (api/q (api/db *api*) '{:find [n]
+                                       :where [[e :name n]
+                                               [(clojure.string/starts-with? n "Iv")]
+                                               [(> n "Ivan")]
+                                               [(< n "Ivz")]]}))))))
+
+(t/deftest test-entity-cache-shared-between-queries
+  (let [{:keys [entity-cache]} (:query-engine *api*)
+        cached-entities #(reduce + (map count (:segments entity-cache)))
+        q '{:find [(eql/project e [:name])]
+            :where [[e :name "Ivan"]]}]
+    (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan :name "Ivan"}]])
+    (let [db (api/db *api*)]
+      (t/is (= #{[{:name "Ivan"}]} (api/q db q)))
+      (let [cached (cached-entities)]
+        (t/is (pos? cached))
+        (t/is (= #{[{:name "Ivan"}]} (api/q db q)))
+        (t/is (= cached (cached-entities)))))
+
+    (t/testing "invalidated by evictions"
+      (fix/submit+await-tx [[:crux.tx/evict :ivan]])
+      (t/is (= #{} (api/q (api/db *api*) q)))
+      (t/is (nil? (api/entity (api/db *api*) :ivan))))))
+
+(t/deftest test-entities-batch-lookup
+  (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan :name "Ivan"}]
+                        [:crux.tx/put {:crux.db/id :petr :name "Petr"}]
+                        [:crux.tx/put {:crux.db/id {:map "id"} :name "Map"}]])
+  (fix/submit+await-tx [[:crux.tx/delete :petr]])
+  (let [db (api/db *api*)
+        eids [:petr :ivan {:map "id"} :unknown :ivan]]
+    (t/is (= {:ivan {:crux.db/id :ivan :name "Ivan"}
+              {:map "id"} {:crux.db/id {:map "id"} :name "Map"}}
+             (api/entities db eids)))
+
+    (let [entity-txs (api/entity-txs db eids)]
+      (t/is (= #{:ivan :petr {:map "id"}} (set (keys entity-txs))))
+      (t/is (= (api/entity-tx db :petr) (get entity-txs :petr)))
+      (t/is (= (api/entity-tx db :ivan) (get entity-txs :ivan))))
+
+    (t/is (= {} (api/entities db [])))))
+
+(t/deftest test-projection-prefetches-docs
+  (fix/submit+await-tx (for [n (range 10)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "car-" n)) :model n :owner :ivan}]))
+  (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan :name "Ivan"}]])
+  (let [lookup-docs @#'q/lookup-docs
+        !lookups (atom [])]
+    (with-redefs [q/lookup-docs (fn [v db]
+                                  (swap! !lookups conj [(count (::q/hashes (meta v)))
+                                                        (.getName (Thread/currentThread))])
+                                  (lookup-docs v db))]
+      (t/is (= (set (for [n (range 10)]
+                      [{:model n :owner {:name "Ivan"}}]))
+               (api/q (api/db *api*) '{:find [(eql/project ?c [:model {:owner [:name]}])]
+                                       :where [[?c :model]]
+                                       :batch-size 4}))))
+    (let [{prefetched true, fetched false} (group-by #(string/starts-with? (second %) "crux-projection-prefetch")
+                                                     @!lookups)]
+      (t/is (= [4 4 2] (sort-by - (map first prefetched))))
+      (t/is (= [1 1 1] (map first fetched))))))
+
+(t/deftest test-query-profile
+  (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan :name "Ivan" :team :red}]
+                        [:crux.tx/put {:crux.db/id :petr :name "Petr" :team :blue}]
+                        [:crux.tx/put {:crux.db/id :red :colour "red"}]])
+  (let [query '{:find [n (eql/project t [:colour])]
+                :where [[e :name n]
+                        [e :team t]
+                        [t :colour "red"]]}
+        {:keys [result profile]} (q/profile-query (api/db *api*) query)]
+    (t/is (= #{["Ivan" {:colour "red"}]} result))
+    (t/is (= 1 (:rows profile)))
+    (t/is (= #{'[e :name n] '[e :team t] '[t :colour "red"]}
+             (set (map :clause (:clauses profile)))))
+    (t/is (every? (fn [{:keys [vars]}]
+                    (every? (comp pos? :seeks) (vals vars)))
+                  (:clauses profile)))
+    (t/is (every? (set (map :var (:vars profile))) '[e t n]))
+    (t/is (pos? (get-in profile [:doc-fetches :docs])))
+
+    (t/testing "profiled queries report their profile on completion"
+      (let [events (LinkedBlockingQueue.)]
+        (with-open [_ (bus/listen (:bus *api*) {:crux/event-types #{::q/completed-query}}
+                                  #(.put events %))]
+          (t/is (= result (api/q (api/db *api*) (assoc query :profile? true))))
+          (let [event (.poll events 5 TimeUnit/SECONDS)]
+            (t/is (= 1 (get-in event [::q/profile :rows])))
+            (t/is (= (set (map :clause (:clauses profile)))
+                     (set (map :clause (get-in event [::q/profile :clauses])))))))))))
+
+(t/deftest test-query-memory-budget
+  (fix/submit+await-tx (for [n (range 100)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "n-" n)) :n n}]))
+  (let [accounts (LinkedBlockingQueue.)]
+    (with-open [_ (bus/listen (:bus *api*) {:crux/event-types #{::q/submitted-query}}
+                              #(.put accounts (::q/memory-account %)))]
+      (t/testing "sorts spill once the query's budget is exhausted"
+        (t/is (= (for [n (range 100)] [n])
+                 (api/q (api/db *api*) '{:find [n]
+                                         :where [[_ :n n]]
+                                         :order-by [[n :asc]]
+                                         :query-memory-budget 1000})))
+        (let [^MemoryAccount account (.poll accounts 5 TimeUnit/SECONDS)]
+          (t/is (<= 1 (.peak account) 1000))
+          (t/is (zero? (.used account)))))
+
+      (t/testing "queries fail once the relations they build exceed their budget"
+        (t/is (thrown? QueryMemoryBudgetExceededException
+                       (api/q (api/db *api*) {:find '[x]
+                                              :where '[[(identity ns) [x ...]]]
+                                              :args [{'ns (vec (range 1000))}]
+                                              :query-memory-budget 1000})))
+        (t/is (zero? (.used ^MemoryAccount (:memory-account (:query-engine *api*)))))))))
+
+(t/deftest test-abandoned-sorts-release-their-memory-once
+  (fix/submit+await-tx (for [n (range 100)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "n-" n)) :n n}]))
+  (let [accounts (LinkedBlockingQueue.)
+        ^MemoryAccount engine-account (:memory-account (:query-engine *api*))]
+    (with-open [_ (bus/listen (:bus *api*) {:crux/event-types #{::q/submitted-query}}
+                              #(.put accounts (::q/memory-account %)))]
+      (doseq [operator-memory-budget [nil 1]]
+        (t/testing (str "operator memory budget " operator-memory-budget)
+          (let [cleanup-actions (atom [])]
+            ;; runs the sorter's cleanup once the query is closed, as
+            ;; if the abandoned sort had been collected
+            (with-redefs [cio/register-cleaner (fn [_ action]
+                                                 (swap! cleanup-actions conj action))]
+              (with-open [res (api/open-q (api/db *api*) (cond-> '{:find [n]
+                                                                   :where [[_ :n n]]
+                                                                   :order-by [[n :asc]]
+                                                                   :query-memory-budget 100000}
+                                                           operator-memory-budget (assoc :operator-memory-budget operator-memory-budget)))]
+                (t/is (= [0] (first (iterator-seq res))))))
+            (t/is (seq @cleanup-actions))
+            (doseq [action @cleanup-actions]
+              (action))
+            (let [^MemoryAccount account (.poll accounts 5 TimeUnit/SECONDS)]
+              (t/is (pos? (.peak account)))
+              (t/is (zero? (.used account))))
+            (t/is (zero? (.used engine-account)))))))))
+
+(t/deftest test-query-memory-budget-cannot-exceed-engine-budget
+  (with-open [node (api/start-node {:crux/query-engine {:query-memory-budget 1000}})]
+    (t/is (thrown? QueryMemoryBudgetExceededException
+                   (api/q (api/db node) {:find '[x]
+                                         :where '[[(identity ns) [x ...]]]
+                                         :args [{'ns (vec (range 1000))}]
+                                         :query-memory-budget Long/MAX_VALUE})))))
+
+(t/deftest test-memoized-or-and-not-sub-queries
+  (fix/submit+await-tx (concat (for [n (range 100)]
+                                 [:crux.tx/put {:crux.db/id (keyword (str "user-" n))
+                                                :group (keyword (str "group-" (mod n 10)))}])
+                               [[:crux.tx/put {:crux.db/id :group-3 :banned? true}]
+                                [:crux.tx/put {:crux.db/id :group-4 :vip? true}]]
+                               (for [n (range 3)]
+                                 [:crux.tx/put {:crux.db/id (keyword (str "tier-" n)) :tier n}])))
+  (let [build-sub-query @#'q/build-sub-query
+        build-sub-query-hash-join @#'q/build-sub-query-hash-join
+        !sub-queries (atom 0)
+        !hash-joins (atom 0)]
+    (with-redefs [q/build-sub-query (fn [& args]
+                                      (swap! !sub-queries inc)
+                                      (apply build-sub-query args))
+                  q/build-sub-query-hash-join (fn [& args]
+                                                (swap! !hash-joins inc)
+                                                (apply build-sub-query-hash-join args))]
+      (t/testing "not-join"
+        (reset! !sub-queries 0)
+        (t/is (= 90 (count (api/q (api/db *api*) '{:find [u]
+                                                   :where [[u :group g]
+                                                           (not-join [g]
+                                                                     [g :banned? true])]}))))
+        (t/is (< @!sub-queries 20)))
+
+      (t/testing "or-join"
+        (reset! !sub-queries 0)
+        (t/is (= #{[:group-3] [:group-4]}
+                 (set (api/q (api/db *api*) '{:find [g]
+                                              :where [[u :group g]
+                                                      (or-join [g]
+                                                               [g :banned? true]
+                                                               [g :vip? true])]}))))
+        (t/is (< @!sub-queries 20)))
+
+      (t/testing "stays correlated when the query's memory budget can't hold the hash join"
+        (reset! !sub-queries 0)
+        (t/is (= 90 (count (api/q (api/db *api*) '{:find [u]
+                                                   :where [[u :group g]
+                                                           (not-join [g]
+                                                                     [g :banned? true])]
+                                                   :query-memory-budget 1}))))
+        (t/is (>= @!sub-queries 10)))
+
+      (t/testing "stays correlated when the rows estimated from the join plan don't fit the query's memory budget"
+        (reset! !hash-joins 0)
+        ;; one banned group times three tiers, while the most selective
+        ;; clause alone would fit
+        (t/is (= 90 (count (api/q (api/db *api*) '{:find [u]
+                                                   :where [[u :group g]
+                                                           (not-join [g]
+                                                                     [g :banned? true]
+                                                                     [t :tier _])]
+                                                   :query-memory-budget 200}))))
+        (t/is (zero? @!hash-joins))))))
+
+(t/deftest test-tabled-recursive-rules
+  (fix/submit+await-tx (for [[id next] [[:a :b] [:b :c] [:c :d] [:d :b] [:e :f]]]
+                         [:crux.tx/put {:crux.db/id id :next next}]))
+  (let [rules '[[(reachable ?from ?to)
+                 [?from :next ?to]]
+                [(reachable ?from ?to)
+                 [?from :next ?via]
+                 (reachable ?via ?to)]]]
+    (t/testing "first argument bound, terminating on the cycle"
+      (t/is (= #{[:b] [:c] [:d]}
+               (api/q (api/db *api*) {:find '[to]
+                                      :where '[(reachable :a to)]
+                                      :rules rules}))))
+
+    (t/testing "second argument bound"
+      (t/is (= #{[:a] [:b] [:c] [:d]}
+               (api/q (api/db *api*) {:find '[from]
+                                      :where '[(reachable from :c)]
+                                      :rules rules}))))
+
+    (t/testing "argument bound by an earlier clause"
+      (t/is (= #{[:e :f]}
+               (api/q (api/db *api*) {:find '[from to]
+                                      :where '[[from :next :f]
+                                               (reachable from to)]
+                                      :rules rules}))))
+
+    (t/testing "answers are held against the query's memory budget"
+      (t/is (thrown-with-msg? QueryMemoryBudgetExceededException #"tabled rule"
+                              (api/q (api/db *api*) {:find '[to]
+                                                     :where '[(reachable :a to)]
+                                                     :rules rules
+                                                     :query-memory-budget 100}))))))
+
+(t/deftest test-query-deltas
+  (let [deltas (LinkedBlockingQueue.)
+        next-delta #(let [delta (.poll deltas 5 TimeUnit/SECONDS)]
+                      (t/is delta)
+                      (select-keys delta [:added :removed]))]
+    (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan :name "Ivan" :team :red}]
+                          [:crux.tx/put {:crux.db/id :red :colour "red"}]])
+
+    (with-open [_ (api/listen *api* {:crux/event-type :crux/query-delta
+                                     :query '{:find [n c]
+                                              :where [[e :name n]
+                                                      [e :team t]
+                                                      [t :colour c]]}}
+                              #(.put deltas %))]
+      (t/is (= {:added #{["Ivan" "red"]}, :removed #{}} (next-delta)))
+
+      (t/testing "only changed tuples are sent"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :petr :name "Petr" :team :red}]])
+        (t/is (= {:added #{["Petr" "red"]}, :removed #{}} (next-delta))))
+
+      (t/testing "transactions not changing results send nothing"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :blue :colour "blue"}]])
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :red :colour "crimson"}]])
+        (t/is (= {:added #{["Ivan" "crimson"] ["Petr" "crimson"]}
+                  :removed #{["Ivan" "red"] ["Petr" "red"]}}
+                 (next-delta))))
+
+      (t/testing "tuples still derived from other entities aren't removed"
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan-2 :name "Ivan" :team :red}]])
+        (fix/submit+await-tx [[:crux.tx/delete :ivan]])
+        (fix/submit+await-tx [[:crux.tx/delete :ivan-2]])
+        (t/is (= {:added #{}, :removed #{["Ivan" "crimson"]}} (next-delta))))
+
+      (t/is (nil? (.poll deltas 100 TimeUnit/MILLISECONDS))))
+
+    (t/testing "queries evaluated in full"
+      (with-open [_ (api/listen *api* {:crux/event-type :crux/query-delta
+                                       :query '{:find [n]
+                                                :where [[e :name n]
+                                                        (not [e :team :red])]}}
+                                #(.put deltas %))]
+        (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :petr :name "Petr" :team :blue}]])
+        (t/is (= {:added #{["Petr"]}, :removed #{}} (next-delta)))))
+
+    (t/is (thrown? IllegalArgumentException
+                   (api/listen *api* {:crux/event-type :crux/query-delta
+                                      :query '{:find [n]
+                                               :where [[e :name n]]
+                                               :limit 1}}
+                               #(.put deltas %))))))
+
+(t/deftest test-order-by-with-limit-and-offset
+  (let [vals (shuffle (range 100))]
+    (fix/transact! *api* (for [n vals]
+                           {:crux.db/id (keyword (str "n-" n))
+                            :val n
+                            :group (mod n 3)}))
+    (let [db (api/db *api*)]
+      (t/is (= [[99] [98] [97]]
+               (api/q db '{:find [v]
+                           :where [[e :val v]]
+                           :order-by [[v :desc]]
+                           :limit 3})))
+
+      (t/is (= [[10] [11] [12] [13]]
+               (api/q db '{:find [v]
+                           :where [[e :val v]]
+                           :order-by [[v :asc]]
+                           :offset 10
+                           :limit 4})))
+
+      (t/is (= [[0 3] [0 0] [1 97]]
+               (api/q db '{:find [g v]
+                           :where [[e :val v]
+                                   [e :group g]]
+                           :order-by [[g :asc] [v :desc]]
+                           :offset 32
+                           :limit 3})))
+
+      (t/is (empty? (api/q db '{:find [v]
+                                :where [[e :val v]]
+                                :order-by [[v :asc]]
+                                :limit 0})))
+
+      (t/testing "ties keep their join order, like an unlimited sort"
+        (let [join-order (with-open [res (api/open-q db '{:find [g v]
+                                                          :where [[e :val v]
+                                                                  [e :group g]]})]
+                           (vec (iterator-seq res)))]
+          (t/is (= (take 5 (sort-by first join-order))
+                   (api/q db '{:find [g v]
+                               :where [[e :val v]
+                                       [e :group g]]
+                               :order-by [[g :asc]]
+                               :limit 5}))))))))
+
 (t/deftest test-query-with-timeout-419
   (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan" :last-name "Ivanov"}
                         {:crux.db/id :petr :name "Petr" :last-name "Petrov"}])
@@ -3284,7 +3827,7 @@
                                    :where [[e :crux.db/id _]]
                                    :timeout 100})))
 
-  (with-redefs [idx/layered-idx->seq (let [f idx/layered-idx->seq]
+  (with-redefs [idx/layered-idx->batch-seq (let [f idx/layered-idx->batch-seq]
                                        (fn [& args]
                                          (lazy-seq
                                           (Thread/sleep 500)
@@ -3294,6 +3837,32 @@
                                            :where [[e :crux.db/id _]]
                                            :timeout 100})))))
 
+(t/deftest test-parallel-query-partitions-first-var
+  (with-open [node (api/start-node {:crux/query-engine {:query-parallelism 4}})]
+    (fix/submit+await-tx node (for [n (range 50)]
+                                [:crux.tx/put {:crux.db/id (keyword (str "person-" n))
+                                               :age (mod n 7)
+                                               :n n}]))
+    (with-redefs [q/min-partition-keys 1]
+      (let [db (api/db node)]
+        (t/is (= (set (for [n (range 50)]
+                        [(keyword (str "person-" n)) (mod n 7)]))
+                 (api/q db '{:find [e age]
+                             :where [[e :age age]]})))
+
+        (t/is (= (vec (for [age (range 7)]
+                        [age (count (filter #(= age (mod % 7)) (range 50)))]))
+                 (api/q db '{:find [age (count e)]
+                             :where [[e :age age]]
+                             :order-by [[age :asc]]})))
+
+        (t/is (= [[49] [48] [47]]
+                 (api/q db '{:find [n]
+                             :where [[e :n n]
+                                     [(> n 10)]]
+                             :order-by [[n :desc]]
+                             :limit 3})))))))
+
 (t/deftest test-nil-query-attribute-453
   (fix/transact! *api* [{:crux.db/id :id :this :that :these :those}])
   (t/is (thrown-with-msg?
@@ -3387,6 +3956,28 @@
                 :vars-in-join-order
                 (filter #{'m 'e})))))
 
+(t/deftest test-join-order-starts-from-most-selective-var
+  (t/is (= 'f
+           (->> (q/query-plan-for '{:find [e]
+                                    :where [[e :big/value v]
+                                            [e :big/link f]
+                                            [f :small/value w]]}
+                                  c/->value-buffer
+                                  {:big/value 10000 :big/link 10000 :small/value 10})
+                :vars-in-join-order
+                (first))))
+
+  (t/testing "range constraints make a var more selective"
+    (t/is (= '[v e f]
+             (->> (q/query-plan-for '{:find [e]
+                                      :where [[e :big/value v]
+                                              [f :big/link e]
+                                              [(> v 10)]]}
+                                    c/->value-buffer
+                                    {:big/value 10000 :big/link 5000})
+                  :vars-in-join-order
+                  (filter '#{e v f}))))))
+
 (t/deftest test-binds-against-false-arg-885
   (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :foo, :name "foo", :flag? false}]
                         [:crux.tx/put {:crux.db/id :bar, :name "bar", :flag? true}]
@@ -19,7 +19,9 @@
             [crux.api :as crux])
   (:import [java.util Date]
            [java.time Duration]
-           [crux.codec EntityTx]))
+           [java.util.concurrent ExecutorService]
+           [crux.codec EntityTx]
+           [crux.sketch AttributeSketch]))
 
 (t/use-fixtures :each fix/with-node fix/with-silent-test-check
   (fn [f]
@@ -988,3 +990,28 @@
                      {:find '[?e ?name]
                       :where '[[?e :name ?name]]
                       :args [{:?e (int 10)}]})))))
+
+(t/deftest test-attribute-sketches
+  (fix/submit+await-tx (for [n (range 1000)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "person-" n))
+                                        :type (if (< n 10) :admin :user)
+                                        :n n}]))
+
+  @(.submit ^ExecutorService (get-in *api* [:tx-ingester :stats-executor]) ^Runnable (fn []))
+
+  (let [attr-sketch (fn [a]
+                      (AttributeSketch/fromByteArray (db/read-index-meta (:index-store *api*) {:crux/attribute-sketch a})))
+        ^AttributeSketch type-sketch (attr-sketch :type)
+        ^AttributeSketch n-sketch (attr-sketch :n)]
+    (t/is (< 1.5 (.distinctValues type-sketch) 2.5))
+    (t/is (< 900 (.distinctEntities type-sketch) 1100))
+    (t/is (< 900 (.distinctValues n-sketch) 1100))
+    (t/is (< 900 (.valueFrequency type-sketch (c/->value-buffer :user)) 1100))
+    (t/is (< (.valueFrequency type-sketch (c/->value-buffer :admin)) 100))
+
+    (t/testing "sketches are merged incrementally"
+      (fix/submit+await-tx (for [n (range 1000 2000)]
+                             [:crux.tx/put {:crux.db/id (keyword (str "person-" n))
+                                            :n n}]))
+      @(.submit ^ExecutorService (get-in *api* [:tx-ingester :stats-executor]) ^Runnable (fn []))
+      (t/is (< 1800 (.distinctValues ^AttributeSketch (attr-sketch :n)) 2200)))))